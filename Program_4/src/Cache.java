@@ -5,13 +5,82 @@
 //	Description:
 //  The cache class is designed to be used as a cache as part of ThreadOS.
 //  It uses the enhanced second chance algorithm using the reference bit and
-//  dirty bit that is stored with the private class Entry.
-//  Entry also has a block ID stored inside.
-//  The page table is created as an array of Entry classes.
+//  dirty bit of every page.
+//  The page table is stored as primitive arrays: blockIds holds the block
+//  of each page and the valid, reference and dirty bits are packed 64 pages
+//  to a long. Free page, victim and dirty page searches test a whole word
+//  at a time and jump to the next set bit with Long.numberOfTrailingZeros.
+//  The ids of resident blocks are saved to the CACHE file on csync and at
+//  shutdown so that the next boot can prefetch them and skip most of the
+//  cold start.
+//
+//  Read hits do not take the cache monitor. Each page has a StampedLock
+//  used as a seqlock: a hit copies the frame optimistically and retries if
+//  a writer changed the frame meanwhile. Misses, writes and evictions are
+//  synchronized and take the page's write lock whenever they change its
+//  contents or its blockId. Reference bits are set by lock-free hits, so
+//  they live in an AtomicLongArray.
+//
+//  Optionally, evicted blocks go to a VictimCache kept in a local file and
+//  misses look there before reading the disk.
+//
+//  When the cache is full, a TinyLFU admission filter decides whether a
+//  missed block may displace the chosen victim. Every access is recorded
+//  in a FrequencySketch, and a block that is not estimated to be more
+//  popular than the victim is read or written straight through to disk
+//  without being inserted. The sketch has its own lock, which locked
+//  paths take after the monitor. Lock-free hits never wait for it: each
+//  thread buffers the blocks it hit and records them once the buffer is
+//  full, if the sketch lock is free at that moment. Otherwise the buffer
+//  waits for the thread's next miss, write or pin, and hits that find it
+//  full are dropped.
+//
+//  A block can be pinned with pin(), which hands out a read-only ByteBuffer
+//  view of its frame instead of a copy. Pinned pages are never chosen as
+//  victims or invalidated by flush until every pin is released with
+//  unpin(). The view is shared, so a later cwrite of the block shows
+//  through it.
+//
+//  Callers can describe their access pattern with advise() (the CADVISE
+//  system call). WILLNEED queues a block range for a background prefetch
+//  thread, DONTNEED writes a range back and frees its pages at once, and
+//  SEQUENTIAL marks a range as use-once for the calling thread: its blocks
+//  never get their reference bit set and each read queues readahead.
+//  RANDOM marks a range as random access, which FileCache reads without
+//  readahead, and NORMAL drops the hint.
+//
+//  File system metadata read with readRetained() is retained: the victim
+//  search passes over retained pages as long as any other unpinned page
+//  is left. At most a quarter of the pages can be retained at a time.
+//
+//  flush() writes the dirty pages back and then only bumps the cache
+//  epoch. Each bitmap word remembers the epoch it was last swept in; a
+//  word from an older epoch holds no live pages except pinned ones, and
+//  is swept clean the next time a miss, write or eviction looks at it.
+//  invalidateRange() drops a block range without writing it back and
+//  takes the same shortcut when the range covers the whole disk.
+//
+//  The prefetch and warm-up threads issue their disk requests in the
+//  PREFETCH class of DiskScheduler, and write-backs of the pages they
+//  evict in the WRITEBACK class, so demand misses get the disk first.
+//  They read the block without holding the cache monitor and only take
+//  it to insert the block. Prefetches of blocks that DONTNEED, flush or
+//  invalidateRange drop are canceled, both in the queue and at the disk.
+//
+//  Reads, writes, write-backs, syncs and flushes emit Java Flight Recorder
+//  events (CacheAccessEvent, CacheWriteBackEvent, CacheSyncEvent) that
+//  record hit or miss, monitor wait and the evicted victim. They cost a
+//  flag check when no recording is running.
 //
 //-----------------------------------------------------------------------------
 
 import java.util.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
 
 public class Cache {
 
@@ -19,105 +88,522 @@ public class Cache {
     //  Two argument constructor. Cache is called in Kernel.java
     //
     public Cache(int blockSize, int cacheBlocks) {
-        pageTable = new Entry[cacheBlocks];
-        cache = new Vector<byte[]>();
+        this(blockSize, cacheBlocks, Integer.MAX_VALUE, 0, true);
+    }
+
+    //======================= Cache(int, int, int, int, boolean) ===============
+    //  diskBlocks bounds readahead and prefetch to blocks that exist.
+    //  Also sets up a victim cache of victimBlocks blocks in a local file.
+    //  Runs without one if victimBlocks is 0 or the file cannot be mapped.
+    //  If admission is false every missed block is inserted.
+    //
+    public Cache(int blockSize, int cacheBlocks, int diskBlocks,
+                 int victimBlocks, boolean admission) {
+        this.diskBlocks = diskBlocks;
+        prefetchQueue = new LinkedBlockingQueue<Integer>(PREFETCH_QUEUE * cacheBlocks);
+        if (admission) {
+            sketch = new FrequencySketch(cacheBlocks);
+        }
+        if (victimBlocks > 0) {
+            try {
+                victims = new VictimCache(blockSize, victimBlocks);
+            } catch (IOException e) {
+                SysLib.cerr("threadOS: victim cache disabled " + e + "\n");
+            }
+        }
+        int words = (cacheBlocks + 63) >>> 6;
+        blockIds = new int[cacheBlocks];
+        hits = new int[cacheBlocks];
+        locks = new StampedLock[cacheBlocks];
+        pinCount = new int[cacheBlocks];
+        pinned = new long[words];
+        retained = new long[words];
+        wordEpoch = new int[words];
+        valid = new long[words];
+        dirty = new long[words];
+        reference = new AtomicLongArray(words);
+        cache = new byte[cacheBlocks][];
         for (int i = 0; i < cacheBlocks; i++) {
-            pageTable[i] = new Entry();
-            cache.add(new byte[blockSize]);
+            blockIds[i] = -1;
+            locks[i] = new StampedLock();
+            cache[i] = new byte[blockSize];
         }
+
+        Thread prefetcher = new Thread() {
+            public void run() {
+                DiskScheduler.setIoClass(DiskScheduler.PREFETCH);
+                while (true) {
+                    try {
+                        prefetch(prefetchQueue.take(), true);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        };
+        prefetcher.setDaemon(true);
+        prefetcher.start();
+    }
+
+    private static final String SNAPSHOT_FILE = "CACHE"; // Kept next to DISK
+    private static final int OPTIMISTIC_RETRIES = 4; // Before taking the monitor
+    private static final int READAHEAD = 4; // Blocks ahead of a SEQUENTIAL read
+    private static final int PREFETCH_QUEUE = 4; // Queued prefetches per page
+    private static final int HIT_BUFFER = 16; // Lock-free hits recorded at once
+
+    // Page table. Bit (page & 63) of word (page >>> 6) belongs to page.
+    private int[] blockIds; // Identity of each page, -1 if the page is free.
+    private long[] valid; // Set if the page holds a block.
+    private long[] dirty; // Set if the data was modified recently.
+    private AtomicLongArray reference; // Set if the data was used recently.
+    private int[] hits; // Accesses since load, only orders the snapshot.
+    private StampedLock[] locks; // Guards page contents and blockId.
+    private long[] pinned; // Set if the page has an outstanding pin.
+    private long[] retained; // Set if the page holds file system metadata.
+    private int[] wordEpoch; // Epoch each bitmap word was last swept in.
+    private volatile int epoch = 0; // Bumped by flush and full invalidation.
+    private long diskWrites = 0; // Blocks written or dropped, see install.
+    private int[] pinCount; // Outstanding pins of each page.
+    private byte[][] cache; // Frame i holds the block of blockIds[i]
+    private VictimCache victims = null; // Second level, null if disabled
+    private int diskBlocks; // Number of blocks on the disk
+    private LinkedBlockingQueue<Integer> prefetchQueue; // WILLNEED, readahead
+
+    // CADVISE hint of the calling thread: {advice, first block, end block}.
+    private ThreadLocal<int[]> advice = new ThreadLocal<int[]>();
+    // Lock-free hits of the calling thread not recorded yet:
+    // {count, blockId, page, blockId, page, ...}.
+    private ThreadLocal<int[]> hitBuffer = new ThreadLocal<int[]>() {
+        protected int[] initialValue() {
+            return new int[1 + 2 * HIT_BUFFER];
+        }
+    };
+    private FrequencySketch sketch = null; // Admission filter, null if disabled
+    private ReentrantLock sketchLock = new ReentrantLock(); // Guards sketch
+
+    //======================= pageMask(int) ====================================
+    //  Mask of the pages that exist in bitmap word w. Only the last word can
+    //  be partially used.
+    //
+    private long pageMask(int w) {
+        int pagesInWord = blockIds.length - (w << 6);
+        return pagesInWord >= 64 ? -1L : (1L << pagesInWord) - 1;
     }
 
-    //======================= Entry Class ======================================
-    //  Stored variables blockId, reference, and dirty bit. Used for
-    //  enhanced second chance algorithm for cache.
+    //======================= isDirty(int) =====================================
+    //  Bit helpers for the dirty bitmap and the atomic reference bitmap.
+    //  Hits only set a reference bit when it is clear, so a hot page costs a
+    //  plain read instead of a CAS.
     //
-    private class Entry {
-        private int blockId; // Identity in the page table.
-        private boolean reference; // If true, data was used recently.
-        private boolean dirty; // If true, data was modified recently.
+    private boolean isDirty(int page) {
+        return (dirty[page >>> 6] & (1L << page)) != 0;
+    }
+
+    private void setDirty(int page, boolean value) {
+        if (value) {
+            dirty[page >>> 6] |= 1L << page;
+        } else {
+            dirty[page >>> 6] &= ~(1L << page);
+        }
+    }
+
+    private boolean isReferenced(int page) {
+        return (reference.get(page >>> 6) & (1L << page)) != 0;
+    }
+
+    private void markReferenced(int page) {
+        int w = page >>> 6;
+        long bit = 1L << page;
+        long word = reference.get(w);
+        while ((word & bit) == 0 && !reference.compareAndSet(w, word, word | bit)) {
+            word = reference.get(w);
+        }
+    }
 
-        public Entry() {
-            blockId = -1;
-            reference = false;
-            dirty = false;
+    private void clearReferenced(int w, long bits) {
+        long word = reference.get(w);
+        while ((word & bits) != 0 && !reference.compareAndSet(w, word, word & ~bits)) {
+            word = reference.get(w);
         }
     }
 
-    private Entry[] pageTable = null;
-    private Vector<byte[]> cache;
+    //======================= liveMask(int) ====================================
+    //  Pages of word w that may hold a live block: all of them if the word
+    //  was swept in the current epoch, only the pinned ones otherwise.
+    //
+    private long liveMask(int w) {
+        return wordEpoch[w] == epoch ? -1L : pinned[w];
+    }
+
+    //======================= sweep(int) =======================================
+    //  Frees the pages of word w that an epoch bump invalidated, keeping the
+    //  pinned ones, and marks the word current. Flush wrote every dirty page
+    //  back before the bump, so nothing is lost.
+    //
+    private void sweep(int w) {
+        if (wordEpoch[w] == epoch) {
+            return;
+        }
+        long stale = valid[w] & ~pinned[w];
+        for (long bits = stale; bits != 0; bits &= bits - 1) {
+            setBlock((w << 6) + Long.numberOfTrailingZeros(bits), -1);
+        }
+        dirty[w] &= ~stale;
+        clearReferenced(w, stale);
+        wordEpoch[w] = epoch;
+    }
 
     //======================= findFreePage() ===================================
-    //  Searches pageTable for an unused page to use. Returns page number if
-    //  found, else it will return -1.
+    //  Searches the valid bitmap for an unused page to use. Returns page
+    //  number if found, else it will return -1.
     //
     private int findFreePage() {
-        for (int i = 0; i < pageTable.length; i++) {
-            if (pageTable[i].blockId == -1) {
+        for (int w = 0; w < valid.length; w++) {
+            sweep(w);
+            long free = ~valid[w] & pageMask(w);
+            if (free != 0) {
+                return (w << 6) + Long.numberOfTrailingZeros(free);
+            }
+        }
+        return -1;
+    }
+
+    //======================= findPage(int) ====================================
+    //  Searches the page table for the page holding blockId. Returns page
+    //  number if found, else it will return -1. Pages invalidated by an
+    //  epoch bump are skipped. Safe to call without the monitor; callers
+    //  validate the result under the page's stamp.
+    //
+    private int findPage(int blockId) {
+        for (int i = 0; i < blockIds.length; i++) {
+            if (blockIds[i] == blockId && (liveMask(i >>> 6) & (1L << i)) != 0) {
                 return i;
             }
         }
         return -1;
     }
 
+    //======================= setBlock(int, int) ===============================
+    //  Changes the block a page holds under the page's write lock so that
+    //  optimistic readers of the old block fail validation. A blockId of -1
+    //  frees the page.
+    //
+    private void setBlock(int page, int blockId) {
+        long stamp = locks[page].writeLock();
+        if (blockIds[page] != blockId) {
+            retained[page >>> 6] &= ~(1L << page);
+        }
+        blockIds[page] = blockId;
+        if (blockId > -1) {
+            valid[page >>> 6] |= 1L << page;
+        } else {
+            valid[page >>> 6] &= ~(1L << page);
+        }
+        locks[page].unlockWrite(stamp);
+    }
+
+    //======================= fill(int, int, byte) =============================
+    //  Copies buffer into a page and sets its block id as one update under
+    //  the page's write lock.
+    //
+    private void fill(int page, int blockId, byte buffer[]) {
+        long stamp = locks[page].writeLock();
+        System.arraycopy(buffer, 0, cache[page], 0, buffer.length);
+        if (blockIds[page] != blockId) {
+            retained[page >>> 6] &= ~(1L << page);
+        }
+        blockIds[page] = blockId;
+        valid[page >>> 6] |= 1L << page;
+        locks[page].unlockWrite(stamp);
+    }
+
     //======================= nextVictim() =====================================
-    //  Searches page table for a page with reference bit false and returns
-    //  the page.
-    //  Used to swap a page out when there is no more room.
+    //  Searches the page table for a page to swap out when there is no more
+    //  room, using the (reference, dirty) classes of enhanced second chance,
+    //  skipping pinned pages:
+    //  first an unreferenced clean page, then an unreferenced dirty page
+    //  while clearing the reference bits of the pages passed over. If both
+    //  fail every reference bit has been cleared, so the next round finds
+    //  a page. Retained pages are only considered if that finds nothing.
     //
     private int nextVictim() {
-        for (int i = 0; i < pageTable.length; i = (i + 1) % pageTable.length) {
-            if (pageTable[i].reference == false) {
-                return i;
+        int page = nextVictim(true);
+        return page > -1 ? page : nextVictim(false);
+    }
+
+    private int nextVictim(boolean spareRetained) {
+        for (int w = 0; w < valid.length; w++) {
+            sweep(w);
+        }
+        for (int round = 0; round < 2; round++) {
+            // Class (0, 0): not used recently, clean.
+            for (int w = 0; w < valid.length; w++) {
+                long candidates = valid[w] & ~reference.get(w) & ~dirty[w] & ~pinned[w]
+                        & (spareRetained ? ~retained[w] : -1L);
+                if (candidates != 0) {
+                    return (w << 6) + Long.numberOfTrailingZeros(candidates);
+                }
+            }
+            // Class (0, 1): not used recently, dirty. Give the pages passed
+            // over their second chance.
+            for (int w = 0; w < valid.length; w++) {
+                long candidates = valid[w] & ~reference.get(w) & dirty[w] & ~pinned[w]
+                        & (spareRetained ? ~retained[w] : -1L);
+                if (candidates != 0) {
+                    clearReferenced(w, Long.lowestOneBit(candidates) - 1);
+                    return (w << 6) + Long.numberOfTrailingZeros(candidates);
+                }
+                clearReferenced(w, -1L);
             }
-            pageTable[i].reference = false;
         }
-        return -1;
+        return -1; // Every page is pinned.
     }
 
     //======================= writeBack(int) ===================================
-    //  Writes to disk
+    //  Writes to disk. Write-backs forced by a prefetch are background
+    //  work and go to the disk in the WRITEBACK class.
     //
     private void writeBack(int victimEntry) {
-        if (pageTable[victimEntry].blockId >= -1) {
-            SysLib.rawwrite(pageTable[victimEntry].blockId, cache.elementAt(victimEntry));
-            pageTable[victimEntry].dirty = false;
+        if (blockIds[victimEntry] > -1) {
+            CacheWriteBackEvent event = new CacheWriteBackEvent(blockIds[victimEntry]);
+            int ioClass = DiskScheduler.ioClass(-1);
+            if (ioClass == DiskScheduler.PREFETCH) {
+                DiskScheduler.setIoClass(DiskScheduler.WRITEBACK);
+            }
+            SysLib.rawwrite(blockIds[victimEntry], cache[victimEntry]);
+            DiskScheduler.setIoClass(ioClass);
+            setDirty(victimEntry, false);
+            diskWrites++;
+            event.finish();
+        }
+    }
+
+    //======================= evict(int) =======================================
+    //  Makes a page ready to be reused: writes it back if dirty and hands
+    //  a clean copy to the victim cache.
+    //
+    private void evict(int page) {
+        if (isDirty(page)) {
+            writeBack(page);
+        }
+        if (victims != null && blockIds[page] > -1) {
+            victims.put(blockIds[page], cache[page]);
+        }
+    }
+
+    //======================= load(int, int) ===================================
+    //  Reads blockId into a page, from the victim cache if it is there and
+    //  from disk otherwise. Returns false if the disk read failed; the page
+    //  must not be given to blockId then.
+    //
+    private boolean load(int page, int blockId) {
+        return (victims != null && victims.get(blockId, cache[page]))
+                || SysLib.rawread(blockId, cache[page]) == Kernel.OK;
+    }
+
+    //======================= isValidBlock(int) ================================
+    //  True if blockId exists on the disk.
+    //
+    private boolean isValidBlock(int blockId) {
+        return blockId > -1 && blockId < diskBlocks;
+    }
+
+    //======================= admit(int, int) ==================================
+    //  TinyLFU admission: blockId may replace the victim page only if it is
+    //  estimated to be accessed more often. Ties keep the victim.
+    //
+    private boolean admit(int blockId, int victim) {
+        if (sketch == null) {
+            return true;
+        }
+        sketchLock.lock();
+        try {
+            return sketch.frequency(blockId) > sketch.frequency(blockIds[victim]);
+        } finally {
+            sketchLock.unlock();
         }
     }
 
+    //======================= recordHit(int, int) ==============================
+    //  Buffers a lock-free hit of blockId in page. A full buffer is recorded
+    //  only if the sketch lock is free; the hit is dropped if it is not.
+    //  Never blocks.
+    //
+    private void recordHit(int blockId, int page) {
+        int[] buffer = hitBuffer.get();
+        if (buffer[0] == HIT_BUFFER && !tryDrainHits(buffer)) {
+            return;
+        }
+        buffer[1 + 2 * buffer[0]] = blockId;
+        buffer[2 + 2 * buffer[0]] = page;
+        if (++buffer[0] == HIT_BUFFER) {
+            tryDrainHits(buffer);
+        }
+    }
+
+    //======================= tryDrainHits(int) ================================
+    //  Records the buffer if the sketch lock is free. Returns false if not.
+    //
+    private boolean tryDrainHits(int[] buffer) {
+        if (!sketchLock.tryLock()) {
+            return false;
+        }
+        try {
+            drainHits(buffer);
+        } finally {
+            sketchLock.unlock();
+        }
+        return true;
+    }
+
+    //======================= recordAccess(int) ================================
+    //  Records an access on a locked path, after the buffered hits of the
+    //  calling thread.
+    //
+    private void recordAccess(int blockId) {
+        sketchLock.lock();
+        try {
+            drainHits(hitBuffer.get());
+            if (sketch != null) {
+                sketch.increment(blockId);
+            }
+        } finally {
+            sketchLock.unlock();
+        }
+    }
+
+    //======================= drainHits(int) ===================================
+    //  Records buffered hits in the sketch, and in the hit count of pages
+    //  that still hold the same block. The counts only order the snapshot,
+    //  so a count bumped while the page is being reused does no harm.
+    //  The caller holds the sketch lock.
+    //
+    private void drainHits(int[] buffer) {
+        for (int i = 0; i < buffer[0]; i++) {
+            int blockId = buffer[1 + 2 * i];
+            int page = buffer[2 + 2 * i];
+            if (sketch != null) {
+                sketch.increment(blockId);
+            }
+            if (blockIds[page] == blockId) {
+                hits[page]++;
+            }
+        }
+        buffer[0] = 0;
+    }
+
     //======================= read(int, byte) ==================================
-    //  Reads a blockID from pageTable. If not found in page table, method will
-    //  look for a unused page and write block id to the page. If free
-    //  page is not found, method will look for a page to swap out.
+    //  Reads a blockID from the page table. If not found in page table,
+    //  method will look for a unused page and write block id to the page.
+    //  If free page is not found, method will look for a page to swap out.
+    //  Hits are served by readHit without the monitor; everything else falls
+    //  through to readMiss.
+    //  Returns false if blockId is not on the disk or cannot be read.
     //
-    public synchronized boolean read(int blockId, byte buffer[]) {
-        if (blockId > -1) {
-            // Searches for loop to check if blockID is in the page table.
-            for (int i = 0; i < pageTable.length; i++) {
-                if (pageTable[i].blockId == blockId) {
-                    System.arraycopy(cache.elementAt(i), 0, buffer, 0, buffer.length);
-                    pageTable[i].reference = true;
+    public boolean read(int blockId, byte buffer[]) {
+        CacheAccessEvent event = new CacheAccessEvent("read", blockId);
+        try {
+            if (!isValidBlock(blockId)) {
+                return false;
+            }
+            boolean sequential = adviceFor(blockId) == Kernel.CADV_SEQUENTIAL;
+            if (readHit(blockId, buffer, !sequential)) {
+                event.hit = true;
+                if (sequential) {
+                    queuePrefetch(blockId + READAHEAD, 1);
+                }
+                return true;
+            }
+            if (sequential) {
+                queuePrefetch(blockId + 1, READAHEAD);
+            }
+            return readMiss(blockId, buffer, !sequential, event);
+        } finally {
+            event.finish();
+        }
+    }
+
+    //======================= readHit(int, byte) ===============================
+    //  Optimistic read of a resident block. Copies the page and validates
+    //  its stamp afterwards; if a writer touched the page meanwhile the copy
+    //  is retried. Returns false if the block is not resident or the page
+    //  kept changing, in which case the caller takes the locked path.
+    //  The reference bit is left alone unless keep is set.
+    //
+    private boolean readHit(int blockId, byte buffer[], boolean keep) {
+        for (int attempt = 0; attempt < OPTIMISTIC_RETRIES; attempt++) {
+            int page = findPage(blockId);
+            if (page < 0) {
+                return false;
+            }
+            long stamp = locks[page].tryOptimisticRead();
+            if (stamp != 0 && blockIds[page] == blockId) {
+                System.arraycopy(cache[page], 0, buffer, 0, buffer.length);
+                if (locks[page].validate(stamp)) {
+                    if (keep) {
+                        markReferenced(page);
+                    }
+                    recordHit(blockId, page);
                     return true;
                 }
             }
+        }
+        return false;
+    }
+
+    //======================= readMiss(int, byte, boolean, CacheAccessEvent) ===
+    //  Locked read path. Rechecks for a hit since the block may have been
+    //  loaded by another thread, then loads it into a free or victim page.
+    //  A victim page is invalidated before the disk read overwrites it.
+    //
+    private synchronized boolean readMiss(int blockId, byte buffer[], boolean keep,
+                                          CacheAccessEvent event) {
+        event.locked();
+        if (blockId > -1) {
+            recordAccess(blockId);
+            // Check if blockID is in the page table.
+            int page = findPage(blockId);
+            if (page > -1) {
+                event.hit = true;
+                System.arraycopy(cache[page], 0, buffer, 0, buffer.length);
+                if (keep) {
+                    markReferenced(page);
+                }
+                hits[page]++;
+                return true;
+            }
             // BlockID is not in page table, so find a free page.
             int freePage = findFreePage();
             if (freePage > -1) {
-                SysLib.rawread(blockId, cache.elementAt(freePage));
-                System.arraycopy(cache.elementAt(freePage), 0, buffer, 0, buffer.length);
-                pageTable[freePage].blockId = blockId;
+                if (!load(freePage, blockId)) {
+                    return false;
+                }
+                System.arraycopy(cache[freePage], 0, buffer, 0, buffer.length);
+                hits[freePage] = 1;
+                setBlock(freePage, blockId);
                 return true;
             }
             // No free page in page table, so find victim page.
             int victim = nextVictim();
             if (victim > -1) {
-                if (pageTable[victim].dirty == true) {
-                    writeBack(victim);
-                }
-                SysLib.rawread(blockId, cache.elementAt(victim));
-                System.arraycopy(cache.elementAt(victim), 0, buffer, 0, buffer.length);
-                pageTable[victim].blockId = blockId;
-                return true;
+                event.evicting(blockIds[victim], isDirty(victim));
+            }
+            if (victim < 0 || !admit(blockId, victim)) {
+                // Every page is pinned, or the block is not popular enough
+                // to displace the victim. Read through.
+                event.admitted = false;
+                return (victims != null && victims.peek(blockId, buffer))
+                        || SysLib.rawread(blockId, buffer) == Kernel.OK;
             }
+            evict(victim);
+            setBlock(victim, -1);
+            if (!load(victim, blockId)) {
+                return false; // The victim page stays free.
+            }
+            System.arraycopy(cache[victim], 0, buffer, 0, buffer.length);
+            hits[victim] = 1;
+            setBlock(victim, blockId);
+            return true;
         }
         return false;
     }
@@ -126,69 +612,511 @@ public class Cache {
     //  Writes the buffer[ ]array contents to the cache block specified by
     //  blockId from the disk cache if it is in cache,
     //  otherwise finds a free cache block and writes the buffer [ ]
-    //  contents on it. No write through.
+    //  contents on it. No write through, except for blocks the admission
+    //  filter turns away.
     //  Upon an error, it should return false, otherwise return true.
     //
-    public synchronized boolean write(int blockId, byte buffer[]) {
+    public boolean write(int blockId, byte buffer[]) {
+        CacheAccessEvent event = new CacheAccessEvent("write", blockId);
+        try {
+            if (!isValidBlock(blockId)) {
+                return false;
+            }
+            return writeLocked(blockId, buffer, event);
+        } finally {
+            event.finish();
+        }
+    }
+
+    //======================= writeLocked(int, byte, CacheAccessEvent) =========
+    //  Body of write, run under the cache monitor.
+    //
+    private synchronized boolean writeLocked(int blockId, byte buffer[],
+                                             CacheAccessEvent event) {
+        event.locked();
         if (blockId > -1) {
-            // Searches for loop to check if blockID is in the page table.
-            for (int i = 0; i < pageTable.length; i++) {
-                if (pageTable[i].blockId == blockId) {
-                    if (pageTable[i].dirty == true) {
-                        writeBack(i);
-                    }
-                    System.arraycopy(buffer, 0, cache.elementAt(i), 0, buffer.length);
-                    pageTable[i].reference = true;
-                    pageTable[i].dirty = true;
-                    return true;
+            recordAccess(blockId);
+            // Check if blockID is in the page table.
+            int page = findPage(blockId);
+            if (page > -1) {
+                event.hit = true;
+                if (isDirty(page)) {
+                    writeBack(page);
                 }
+                fill(page, blockId, buffer);
+                markReferenced(page);
+                setDirty(page, true);
+                hits[page]++;
+                return true;
+            }
+            // BlockID is not in page table, so any copy in the victim cache
+            // is now stale. Find a free page.
+            if (victims != null) {
+                victims.invalidate(blockId);
             }
-            // BlockID is not in page table, so find a free page.
             int freePage = findFreePage();
             if (freePage > -1) {
-                System.arraycopy(buffer, 0, cache.elementAt(freePage), 0, buffer.length);
-                pageTable[freePage].blockId = blockId;
-                pageTable[freePage].dirty = true;
+                setDirty(freePage, true);
+                hits[freePage] = 1;
+                fill(freePage, blockId, buffer);
                 return true;
             }
             // No free page in page table, so find victim page.
             int victim = nextVictim();
             if (victim > -1) {
-                if (pageTable[victim].dirty == true) {
-                    writeBack(victim);
-                }
-                System.arraycopy(buffer, 0, cache.elementAt(victim), 0, buffer.length);
-                pageTable[victim].blockId = blockId;
-                pageTable[victim].dirty = true;
-                return true;
+                event.evicting(blockIds[victim], isDirty(victim));
             }
+            if (victim < 0 || !admit(blockId, victim)) {
+                // Every page is pinned, or the block is not popular enough
+                // to displace the victim. Write through.
+                event.admitted = false;
+                diskWrites++;
+                return SysLib.rawwrite(blockId, buffer) == Kernel.OK;
+            }
+            evict(victim);
+            setDirty(victim, true);
+            hits[victim] = 1;
+            fill(victim, blockId, buffer);
+            return true;
         }
         return false;
     }
 
     //======================= sync() ===========================================
-    //  Maintains clean block copies in Cache.java
+    //  Maintains clean block copies in Cache.java. Only visits the pages
+    //  whose dirty bit is set. Also saves the snapshot for the next boot.
     //
-    public synchronized void sync() {
-        for (int i = 0; i < pageTable.length; i++) {
-            if (pageTable[i].dirty == true) {
-                writeBack(i);
+    public void sync() {
+        CacheSyncEvent event = new CacheSyncEvent("sync");
+        syncLocked(event);
+        event.finish();
+        saveSnapshot();
+    }
+
+    private synchronized void syncLocked(CacheSyncEvent event) {
+        event.locked();
+        for (int w = 0; w < dirty.length; w++) {
+            for (long bits = dirty[w] & liveMask(w); bits != 0; bits &= bits - 1) {
+                writeBack((w << 6) + Long.numberOfTrailingZeros(bits));
+                event.pagesWritten++;
             }
         }
         SysLib.sync();
     }
 
     //======================= flush) ===========================================
-    //  Invalidates all cached blocks
+    //  Invalidates all cached blocks. Pinned blocks are written back but
+    //  stay valid. Only the dirty pages are visited; the rest is dropped
+    //  by bumping the epoch.
     //
-    public synchronized void flush() {
-        for (int i = 0; i < pageTable.length; i++) {
-            if (pageTable[i].dirty == true) {
-                writeBack(i);
-                pageTable[i].blockId = -1;
-                pageTable[i].reference = false;
+    public void flush() {
+        CacheSyncEvent event = new CacheSyncEvent("flush");
+        flushLocked(event);
+        event.finish();
+    }
+
+    private synchronized void flushLocked(CacheSyncEvent event) {
+        event.locked();
+        for (int w = 0; w < dirty.length; w++) {
+            for (long bits = dirty[w] & liveMask(w); bits != 0; bits &= bits - 1) {
+                writeBack((w << 6) + Long.numberOfTrailingZeros(bits));
+                event.pagesWritten++;
             }
         }
+        epoch++;
+        diskWrites++; // Prefetches in flight must not be installed.
+        cancelPrefetch(0, Integer.MAX_VALUE);
+        if (victims != null) {
+            victims.clear();
+        }
         SysLib.sync();
     }
+
+    //======================= pin(int) =========================================
+    //  Returns a read-only view of the frame holding blockId and pins the
+    //  page until unpin is called. A missed block is read from disk
+    //  straight into its frame, evicting a victim regardless of the
+    //  admission filter since the caller needs a frame. Returns null if
+    //  blockId is invalid, cannot be read or every page is already pinned.
+    //
+    public ByteBuffer pin(int blockId) {
+        CacheAccessEvent event = new CacheAccessEvent("pin", blockId);
+        try {
+            return pinLocked(blockId, event);
+        } finally {
+            event.finish();
+        }
+    }
+
+    private synchronized ByteBuffer pinLocked(int blockId, CacheAccessEvent event) {
+        event.locked();
+        if (!isValidBlock(blockId)) {
+            return null;
+        }
+        recordAccess(blockId);
+        int page = findPage(blockId);
+        if (page > -1) {
+            event.hit = true;
+            hits[page]++;
+        } else {
+            page = findFreePage();
+            if (page < 0) {
+                page = nextVictim();
+                if (page < 0) {
+                    return null;
+                }
+                event.evicting(blockIds[page], isDirty(page));
+                evict(page);
+                setBlock(page, -1);
+            }
+            if (!load(page, blockId)) {
+                return null;
+            }
+            hits[page] = 1;
+            setBlock(page, blockId);
+        }
+        markReferenced(page);
+        pinCount[page]++;
+        pinned[page >>> 6] |= 1L << page;
+        return ByteBuffer.wrap(cache[page]).asReadOnlyBuffer();
+    }
+
+    //======================= unpin(int) =======================================
+    //  Releases one pin of blockId. Returns false if it was not pinned.
+    //
+    public synchronized boolean unpin(int blockId) {
+        int page = (blockId > -1) ? findPage(blockId) : -1;
+        if (page < 0 || pinCount[page] == 0) {
+            return false;
+        }
+        sweep(page >>> 6); // Keeps the page if a flush passed it over.
+        if (--pinCount[page] == 0) {
+            pinned[page >>> 6] &= ~(1L << page);
+        }
+        return true;
+    }
+
+    //======================= readRetained(int, byte) ==========================
+    //  Reads a block of file system metadata, such as an index block, and
+    //  retains its page ahead of data pages while fewer than a quarter of
+    //  the pages are retained.
+    //
+    public boolean readRetained(int blockId, byte buffer[]) {
+        if (!read(blockId, buffer)) {
+            return false;
+        }
+        int page = findPage(blockId);
+        if (page > -1 && (retained[page >>> 6] & (1L << page)) == 0) {
+            retain(blockId);
+        }
+        return true;
+    }
+
+    private synchronized void retain(int blockId) {
+        int page = findPage(blockId);
+        if (page < 0) {
+            return;
+        }
+        int count = 0;
+        for (int w = 0; w < retained.length; w++) {
+            count += Long.bitCount(retained[w]);
+        }
+        if (count < Math.max(1, blockIds.length / 4)) {
+            retained[page >>> 6] |= 1L << page;
+        }
+    }
+
+    //======================= invalidate(int) ==================================
+    //  Drops blockId without writing it back, for callers that wrote the
+    //  block on disk around the cache.
+    //
+    public void invalidate(int blockId) {
+        invalidateRange(blockId, 1);
+    }
+
+    //======================= invalidateRange(int, int) ========================
+    //  Drops blocks first to first + count - 1 without writing them back.
+    //  A pinned page is read again instead so that its views show the new
+    //  data. A range covering the whole disk bumps the epoch instead of
+    //  visiting the pages; a smaller one visits every live page once.
+    //
+    public synchronized void invalidateRange(int first, int count) {
+        long end = (long)first + count;
+        if (count < 1 || end <= 0) {
+            return;
+        }
+        diskWrites++;
+        cancelPrefetch(first, (int)Math.min(end, Integer.MAX_VALUE));
+        if (first <= 0 && end >= diskBlocks) {
+            for (int w = 0; w < dirty.length; w++) {
+                dirty[w] &= pinned[w];
+            }
+            epoch++;
+            if (victims != null) {
+                victims.clear();
+            }
+        } else if (victims != null) {
+            int last = (int)Math.min(end, diskBlocks);
+            for (int blockId = Math.max(first, 0); blockId < last; blockId++) {
+                victims.invalidate(blockId);
+            }
+        }
+        for (int w = 0; w < valid.length; w++) {
+            for (long bits = valid[w] & liveMask(w); bits != 0; bits &= bits - 1) {
+                int page = (w << 6) + Long.numberOfTrailingZeros(bits);
+                if (blockIds[page] < first || blockIds[page] >= end) {
+                    continue;
+                }
+                setDirty(page, false);
+                if (pinCount[page] > 0) {
+                    long stamp = locks[page].writeLock();
+                    SysLib.rawread(blockIds[page], cache[page]);
+                    locks[page].unlockWrite(stamp);
+                } else {
+                    setBlock(page, -1);
+                    clearReferenced(w, 1L << page);
+                }
+            }
+        }
+    }
+
+    //======================= saveSnapshot() ===================================
+    //  Writes the ids of all resident blocks to the snapshot file, hottest
+    //  first. Recently referenced blocks come before unreferenced ones and
+    //  ties are broken by hit count. Called by sync, which Kernel also runs
+    //  at shutdown. Raw disk syncs, including the one in flush, leave the
+    //  snapshot alone so that a flushed cache does not overwrite it.
+    //
+    private synchronized void saveSnapshot() {
+        List<Integer> resident = new ArrayList<Integer>();
+        for (int w = 0; w < valid.length; w++) {
+            for (long bits = valid[w] & liveMask(w); bits != 0; bits &= bits - 1) {
+                resident.add((w << 6) + Long.numberOfTrailingZeros(bits));
+            }
+        }
+        Collections.sort(resident, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                if (isReferenced(a) != isReferenced(b)) {
+                    return isReferenced(a) ? -1 : 1;
+                }
+                return hits[b] - hits[a];
+            }
+        });
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(SNAPSHOT_FILE)));
+            out.writeInt(resident.size());
+            for (int page : resident) {
+                out.writeInt(blockIds[page]);
+            }
+            out.close();
+        } catch (IOException e) {
+            SysLib.cerr("threadOS: cache snapshot not saved " + e + "\n");
+        }
+    }
+
+    //======================= warmUp() =========================================
+    //  Reads the snapshot left by the last sync and prefetches the hottest
+    //  blocks that fit in the cache on a background thread. The blocks are
+    //  fetched in ascending block order so the disk head sweeps once.
+    //  Warm-up stops when the epoch changes, since the cache was then
+    //  flushed or invalidated on purpose.
+    //  Must be called after Kernel has set up its I/O queue.
+    //
+    public void warmUp() {
+        int[] blocks;
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(SNAPSHOT_FILE)));
+            int count = Math.min(in.readInt(), blockIds.length);
+            blocks = new int[Math.max(count, 0)];
+            for (int i = 0; i < blocks.length; i++) {
+                blocks[i] = in.readInt();
+            }
+            in.close();
+        } catch (FileNotFoundException e) {
+            return; // First boot, nothing to warm up.
+        } catch (IOException e) {
+            SysLib.cerr("threadOS: cache snapshot not loaded " + e + "\n");
+            return;
+        }
+        Arrays.sort(blocks);
+
+        final int[] prefetchList = blocks;
+        final int startEpoch = epoch;
+        Thread loader = new Thread() {
+            public void run() {
+                DiskScheduler.setIoClass(DiskScheduler.PREFETCH);
+                for (int i = 0; i < prefetchList.length; i++) {
+                    if (epoch != startEpoch) {
+                        return; // Flushed, the snapshot is out of date.
+                    }
+                    if (!prefetch(prefetchList[i], false)) {
+                        return; // Cache filled up by demand traffic.
+                    }
+                }
+            }
+        };
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    //======================= prefetch(int, boolean) ===========================
+    //  Loads a block into a free page without setting its reference bit, so
+    //  a prefetched block that is never used is the first to be evicted.
+    //  If there is no free page it evicts a victim when evict is set.
+    //  The block is read without the monitor, so demand misses are not
+    //  held up behind it. Returns false if there was no page for it.
+    //
+    private boolean prefetch(int blockId, boolean evict) {
+        if (blockId < 0 || blockId >= diskBlocks) {
+            return true;
+        }
+        long version;
+        synchronized (this) {
+            if (findPage(blockId) > -1) {
+                return true;
+            }
+            if (!evict && findFreePage() < 0) {
+                return false;
+            }
+            version = diskWrites;
+        }
+        byte data[] = new byte[cache[0].length];
+        if (victims == null || !victims.peek(blockId, data)) {
+            if (SysLib.rawread(blockId, data) != Kernel.OK) {
+                return true; // Canceled
+            }
+        }
+        return install(blockId, data, version, evict);
+    }
+
+    //======================= install(int, byte, long, boolean) ================
+    //  Inserts a prefetched block. It is dropped if the block was loaded
+    //  meanwhile, or if the cache wrote or dropped any block since the read
+    //  started, as the data might then be older than the disk.
+    //
+    private synchronized boolean install(int blockId, byte data[], long version,
+                                         boolean evict) {
+        if (findPage(blockId) > -1 || version != diskWrites) {
+            return true;
+        }
+        int freePage = findFreePage();
+        if (freePage < 0 && evict) {
+            freePage = nextVictim();
+            if (freePage > -1) {
+                evict(freePage);
+                setBlock(freePage, -1);
+            }
+        }
+        if (freePage < 0) {
+            return false;
+        }
+        if (victims != null) {
+            victims.invalidate(blockId); // The victim cache is exclusive.
+        }
+        setDirty(freePage, false);
+        hits[freePage] = 0;
+        fill(freePage, blockId, data);
+        return true;
+    }
+
+    //======================= cancelPrefetch(int, int) =========================
+    //  Drops the queued prefetches of blocks in [first, end) and cancels
+    //  the one waiting for the disk, if any.
+    //
+    private void cancelPrefetch(int first, int end) {
+        Iterator<Integer> i = prefetchQueue.iterator();
+        while (i.hasNext()) {
+            int blockId = i.next();
+            if (blockId >= first && blockId < end) {
+                i.remove();
+            }
+        }
+        Kernel.cancelPrefetch(first, end);
+    }
+
+    //======================= queuePrefetch(int, int) ==========================
+    //  Hands count blocks starting at first to the prefetch thread. Blocks
+    //  past the end of the disk are left out, and so is everything once the
+    //  queue is full.
+    //
+    private void queuePrefetch(int first, int count) {
+        int end = (int)Math.min((long)first + count, diskBlocks);
+        for (int blockId = Math.max(first, 0); blockId < end; blockId++) {
+            if (!prefetchQueue.offer(blockId)) {
+                return;
+            }
+        }
+    }
+
+    //======================= advise(int, int, int) ============================
+    //  Takes an access pattern hint for blocks first to first + count - 1.
+    //  WILLNEED prefetches at most a cache worth of the range in the
+    //  background. DONTNEED writes the range back and frees its pages.
+    //  SEQUENTIAL makes the calling thread's reads in the range use-once
+    //  with readahead, RANDOM marks them random and NORMAL drops the
+    //  thread's hint. Returns false for an unknown hint or an empty range.
+    //
+    public boolean advise(int first, int count, int hint) {
+        if (first < 0 || count < 1) {
+            return false;
+        }
+        switch (hint) {
+            case Kernel.CADV_WILLNEED:
+                queuePrefetch(first, Math.min(count, blockIds.length));
+                return true;
+            case Kernel.CADV_DONTNEED:
+                dropRange(first, (int)Math.min((long)first + count, Integer.MAX_VALUE));
+                return true;
+            case Kernel.CADV_SEQUENTIAL:
+            case Kernel.CADV_RANDOM:
+                advice.set(new int[] {hint, first, (int)Math.min((long)first + count, Integer.MAX_VALUE)});
+                return true;
+            case Kernel.CADV_NORMAL:
+                advice.remove();
+                return true;
+        }
+        return false;
+    }
+
+    //======================= adviceFor(int) ===================================
+    //  The calling thread's hint for blockId, CADV_NORMAL if none applies.
+    //
+    int adviceFor(int blockId) {
+        int[] hint = advice.get();
+        if (hint == null || blockId < hint[1] || blockId >= hint[2]) {
+            return Kernel.CADV_NORMAL;
+        }
+        return hint[0];
+    }
+
+    //======================= dropRange(int, int) ==============================
+    //  Writes back and frees every unpinned page holding a block in
+    //  [first, end), so its frame is the next one findFreePage hands out.
+    //  Copies in the victim cache are dropped too.
+    //
+    private synchronized void dropRange(int first, int end) {
+        diskWrites++; // Prefetches in flight must not be installed.
+        cancelPrefetch(first, end);
+        for (int w = 0; w < valid.length; w++) {
+            for (long bits = valid[w] & liveMask(w); bits != 0; bits &= bits - 1) {
+                int page = (w << 6) + Long.numberOfTrailingZeros(bits);
+                if (blockIds[page] >= first && blockIds[page] < end) {
+                    if (isDirty(page)) {
+                        writeBack(page);
+                    }
+                    if (pinCount[page] == 0) {
+                        setBlock(page, -1);
+                        clearReferenced(w, 1L << page);
+                    }
+                }
+            }
+        }
+        if (victims != null) {
+            for (int blockId = first; blockId < end && blockId < diskBlocks; blockId++) {
+                victims.invalidate(blockId);
+            }
+        }
+    }
 }
@@ -0,0 +1,91 @@
+//----------------------------------------------------------------------------
+//	CacheAccessEvent.java
+//	Author: Chad Dugie, David Trinh
+//----------------------------------------------------------------------------
+//	Description:
+//  Java Flight Recorder event for one Cache.read or Cache.write. Records
+//  whether the block was a hit, how long the thread waited for the cache
+//  monitor, and on a miss which block was evicted, whether it was dirty
+//  and whether the admission filter let the new block in. Write-back and
+//  disk time show up as separate CacheWriteBackEvent and DiskRequestEvent
+//  events nested inside this one.
+//
+//-----------------------------------------------------------------------------
+
+import jdk.jfr.*;
+
+@Name("threados.CacheAccess")
+@Label("Cache Access")
+@Category({"ThreadOS", "Cache"})
+@Description("A cread or cwrite served by Cache")
+public class CacheAccessEvent extends Event {
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Block Id")
+    int blockId;
+
+    @Label("ThreadOS Tid")
+    int tid;
+
+    @Label("Hit")
+    boolean hit;
+
+    @Label("Victim Block Id")
+    int victimBlockId = -1;
+
+    @Label("Victim Dirty")
+    boolean victimDirty;
+
+    @Label("Admitted")
+    boolean admitted = true;
+
+    @Label("Monitor Wait")
+    @Timespan(Timespan.NANOSECONDS)
+    long monitorWait;
+
+    private transient long start;
+
+    //======================= CacheAccessEvent(String, int) ====================
+    //  Starts timing an access as it enters Cache.
+    //
+    public CacheAccessEvent(String operation, int blockId) {
+        this.operation = operation;
+        this.blockId = blockId;
+        if (isEnabled()) {
+            begin();
+            start = System.nanoTime();
+        }
+    }
+
+    //======================= locked() =========================================
+    //  Called once the thread holds the cache monitor.
+    //
+    public void locked() {
+        if (isEnabled()) {
+            monitorWait = System.nanoTime() - start;
+        }
+    }
+
+    //======================= evicting(int, boolean) ===========================
+    //  Records the victim chosen for a miss.
+    //
+    public void evicting(int victimBlockId, boolean victimDirty) {
+        this.victimBlockId = victimBlockId;
+        this.victimDirty = victimDirty;
+    }
+
+    //======================= finish() =========================================
+    //  Called when the access returns. Commits if the recording wants it.
+    //
+    public void finish() {
+        if (isEnabled()) {
+            end();
+            if (shouldCommit()) {
+                tid = Kernel.myTid();
+                commit();
+            }
+        }
+    }
+}
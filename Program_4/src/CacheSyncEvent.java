@@ -0,0 +1,65 @@
+//----------------------------------------------------------------------------
+//	CacheSyncEvent.java
+//	Author: Chad Dugie, David Trinh
+//----------------------------------------------------------------------------
+//	Description:
+//  Java Flight Recorder event for Cache.sync and Cache.flush, with the
+//  time spent waiting for the cache monitor and the number of dirty pages
+//  written back.
+//
+//-----------------------------------------------------------------------------
+
+import jdk.jfr.*;
+
+@Name("threados.CacheSync")
+@Label("Cache Sync")
+@Category({"ThreadOS", "Cache"})
+@Description("A csync or cflush served by Cache")
+public class CacheSyncEvent extends Event {
+
+    @Label("Operation")
+    String operation;
+
+    @Label("ThreadOS Tid")
+    int tid;
+
+    @Label("Pages Written")
+    int pagesWritten;
+
+    @Label("Monitor Wait")
+    @Timespan(Timespan.NANOSECONDS)
+    long monitorWait;
+
+    private transient long start;
+
+    //======================= CacheSyncEvent(String) ===========================
+    //
+    public CacheSyncEvent(String operation) {
+        this.operation = operation;
+        if (isEnabled()) {
+            begin();
+            start = System.nanoTime();
+        }
+    }
+
+    //======================= locked() =========================================
+    //  Called once the thread holds the cache monitor.
+    //
+    public void locked() {
+        if (isEnabled()) {
+            monitorWait = System.nanoTime() - start;
+        }
+    }
+
+    //======================= finish() =========================================
+    //
+    public void finish() {
+        if (isEnabled()) {
+            end();
+            if (shouldCommit()) {
+                tid = Kernel.myTid();
+                commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+//----------------------------------------------------------------------------
+//	CacheWriteBackEvent.java
+//	Author: Chad Dugie, David Trinh
+//----------------------------------------------------------------------------
+//	Description:
+//  Java Flight Recorder event for Cache writing one dirty page back to
+//  disk, whether on eviction, on a rewrite, or from sync and flush.
+//
+//-----------------------------------------------------------------------------
+
+import jdk.jfr.*;
+
+@Name("threados.CacheWriteBack")
+@Label("Cache Write-Back")
+@Category({"ThreadOS", "Cache"})
+@Description("A dirty cache page written back to disk")
+public class CacheWriteBackEvent extends Event {
+
+    @Label("Block Id")
+    int blockId;
+
+    @Label("ThreadOS Tid")
+    int tid;
+
+    //======================= CacheWriteBackEvent(int) =========================
+    //
+    public CacheWriteBackEvent(int blockId) {
+        this.blockId = blockId;
+        if (isEnabled()) {
+            begin();
+        }
+    }
+
+    //======================= finish() =========================================
+    //
+    public void finish() {
+        if (isEnabled()) {
+            end();
+            if (shouldCommit()) {
+                tid = Kernel.myTid();
+                commit();
+            }
+        }
+    }
+}
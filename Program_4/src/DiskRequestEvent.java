@@ -0,0 +1,83 @@
+//----------------------------------------------------------------------------
+//	DiskRequestEvent.java
+//	Author: Chad Dugie, David Trinh
+//----------------------------------------------------------------------------
+//	Description:
+//  Java Flight Recorder event for one raw disk request issued by Kernel.
+//  The time until Disk accepts the request (the DiskScheduler and
+//  COND_DISK_REQ waits) is recorded as the queue wait, and the time from acceptance until the
+//  request is done (the COND_DISK_FIN wait, i.e. the seek and transfer)
+//  as the service time. Nothing is timed unless a recording enables the
+//  event.
+//
+//-----------------------------------------------------------------------------
+
+import jdk.jfr.*;
+
+@Name("threados.DiskRequest")
+@Label("Disk Request")
+@Category({"ThreadOS", "Disk"})
+@Description("A rawread, rawwrite or sync handled by Kernel")
+public class DiskRequestEvent extends Event {
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Block Id")
+    int blockId;
+
+    @Label("I/O Class")
+    String ioClass;
+
+    @Label("ThreadOS Tid")
+    int tid;
+
+    @Label("Queue Wait")
+    @Timespan(Timespan.NANOSECONDS)
+    long queueWait;
+
+    @Label("Service Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long serviceTime;
+
+    private transient long start;
+    private transient long acceptedAt;
+
+    //======================= DiskRequestEvent(String, int, int) ===============
+    //  Starts timing a request of the given DiskScheduler I/O class before
+    //  it is handed to Disk.
+    //
+    public DiskRequestEvent(String operation, int blockId, int ioClass) {
+        this.operation = operation;
+        this.blockId = blockId;
+        this.ioClass = DiskScheduler.CLASS_NAMES[ioClass];
+        if (isEnabled()) {
+            begin();
+            start = System.nanoTime();
+        }
+    }
+
+    //======================= accepted() =======================================
+    //  Called once Disk has accepted the request.
+    //
+    public void accepted() {
+        if (isEnabled()) {
+            acceptedAt = System.nanoTime();
+        }
+    }
+
+    //======================= finish() =========================================
+    //  Called once the request is done. Commits if the recording wants it.
+    //
+    public void finish() {
+        if (isEnabled()) {
+            end();
+            if (shouldCommit()) {
+                queueWait = acceptedAt - start;
+                serviceTime = System.nanoTime() - acceptedAt;
+                tid = Kernel.myTid();
+                commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+//----------------------------------------------------------------------------
+//	DiskScheduler.java
+//	Author: Chad Dugie, David Trinh
+//----------------------------------------------------------------------------
+//	Description:
+//  DiskScheduler decides which thread gets the single Disk request slot
+//  next. Kernel acquires it before every rawread, rawwrite and sync and
+//  releases it once the request is finished, so at most one request is at
+//  the disk and the others wait here instead of racing on COND_DISK_REQ.
+//
+//  Every request carries an I/O class, from most to least urgent:
+//    DEMAND_READ  a thread is blocked on the data (cache miss, rawread)
+//    SYNC_WRITE   a thread is blocked until the write is done
+//    WRITEBACK    a dirty page written back by background work
+//    PREFETCH     a speculative read by the prefetch or warm-up thread
+//  The class is taken from the calling thread, see setIoClass, and
+//  defaults to DEMAND_READ for reads and SYNC_WRITE for writes.
+//
+//  The most urgent waiting class is served first, FIFO within a class. A
+//  class that has been passed over STARVATION_LIMIT times while it had
+//  waiters is served next regardless, so background work keeps moving
+//  while the disk is saturated by foreground requests. Waiting prefetches
+//  can be canceled, e.g. when their blocks are dropped from the cache.
+//
+//-----------------------------------------------------------------------------
+
+import java.util.*;
+
+public class DiskScheduler {
+
+    // I/O classes, most urgent first
+    public static final int DEMAND_READ = 0;
+    public static final int SYNC_WRITE = 1;
+    public static final int WRITEBACK = 2;
+    public static final int PREFETCH = 3;
+    private static final int CLASSES = 4;
+    static final String[] CLASS_NAMES =
+            {"demand read", "sync write", "writeback", "prefetch"};
+
+    private static final int STARVATION_LIMIT = 8; // Dispatches passed over
+
+    // I/O class of the calling thread, -1 for the default of the request.
+    private static ThreadLocal<int[]> ioClass = new ThreadLocal<int[]>() {
+        protected int[] initialValue() {
+            return new int[] {-1};
+        }
+    };
+
+    //======================= Request Class ====================================
+    //  One waiting request.
+    //
+    private static class Request {
+        final int blockId;
+        boolean granted = false;
+        boolean canceled = false;
+
+        Request(int blockId) {
+            this.blockId = blockId;
+        }
+    }
+
+    private List<Deque<Request>> queues = new ArrayList<Deque<Request>>();
+    private int[] passedOver = new int[CLASSES]; // Dispatches since served
+    private boolean busy = false; // A request holds the disk.
+
+    public DiskScheduler() {
+        for (int c = 0; c < CLASSES; c++) {
+            queues.add(new ArrayDeque<Request>());
+        }
+    }
+
+    //======================= setIoClass(int) ==================================
+    //  Sets the I/O class of the calling thread's disk requests and returns
+    //  the previous one, so callers can restore it. -1 restores the default.
+    //
+    public static int setIoClass(int c) {
+        int[] current = ioClass.get();
+        int previous = current[0];
+        current[0] = c;
+        return previous;
+    }
+
+    //======================= ioClass(int) =====================================
+    //  I/O class of the calling thread, or defaultClass if none is set.
+    //
+    public static int ioClass(int defaultClass) {
+        int c = ioClass.get()[0];
+        return c < 0 ? defaultClass : c;
+    }
+
+    //======================= acquire(int, int) ================================
+    //  Waits until the calling thread may issue its request for blockId
+    //  (-1 for a sync). Returns false if the request was a prefetch and got
+    //  canceled meanwhile; the caller must not issue it then.
+    //
+    public synchronized boolean acquire(int c, int blockId) {
+        Request request = new Request(blockId);
+        queues.get(c).addLast(request);
+        dispatch();
+        boolean interrupted = false;
+        while (!request.granted && !request.canceled) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return request.granted;
+    }
+
+    //======================= release() ========================================
+    //  Frees the disk once the granted request is finished.
+    //
+    public synchronized void release() {
+        busy = false;
+        dispatch();
+    }
+
+    //======================= cancelPrefetch(int, int) =========================
+    //  Cancels the waiting prefetches of blocks in [first, end).
+    //
+    public synchronized void cancelPrefetch(int first, int end) {
+        Iterator<Request> i = queues.get(PREFETCH).iterator();
+        boolean canceled = false;
+        while (i.hasNext()) {
+            Request request = i.next();
+            if (request.blockId >= first && request.blockId < end) {
+                request.canceled = true;
+                i.remove();
+                canceled = true;
+            }
+        }
+        if (canceled) {
+            notifyAll();
+        }
+    }
+
+    //======================= dispatch() =======================================
+    //  Grants the disk to the next request if it is free: the oldest
+    //  request of the most urgent starved class, or else of the most urgent
+    //  class with waiters. Classes left waiting are charged a pass.
+    //
+    private void dispatch() {
+        if (busy) {
+            return;
+        }
+        int next = -1;
+        for (int c = 0; c < CLASSES; c++) {
+            if (!queues.get(c).isEmpty() && passedOver[c] >= STARVATION_LIMIT) {
+                next = c;
+                break;
+            }
+        }
+        for (int c = 0; c < CLASSES && next < 0; c++) {
+            if (!queues.get(c).isEmpty()) {
+                next = c;
+            }
+        }
+        if (next < 0) {
+            return;
+        }
+        queues.get(next).pollFirst().granted = true;
+        busy = true;
+        passedOver[next] = 0;
+        for (int c = 0; c < CLASSES; c++) {
+            if (c != next && !queues.get(c).isEmpty()) {
+                passedOver[c]++;
+            }
+        }
+        notifyAll();
+    }
+}
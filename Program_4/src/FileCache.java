@@ -0,0 +1,557 @@
+//----------------------------------------------------------------------------
+//	FileCache.java
+//	Author: Chad Dugie, David Trinh
+//----------------------------------------------------------------------------
+//	Description:
+//  FileCache implements the OPEN, CLOSE, SIZE, SEEK, FORMAT, DELETE, READ
+//  and WRITE system calls for files. ThreadOS's FileSystem keeps the
+//  directory, the inodes and the free list, and FileCache moves file data
+//  through Cache instead of FileSystem's own raw block I/O:
+//
+//  - A read or write covers as many blocks as the buffer spans, starting
+//    at the seek pointer of the open file, and reads or modifies partial
+//    blocks at both ends.
+//  - Every open file has a readahead window. Reads that continue where the
+//    last one stopped double the window up to MAX_READAHEAD blocks, and the
+//    blocks ahead are handed to Cache as a WILLNEED hint. The blocks a
+//    single read spans are hinted the same way while it runs, so a
+//    whole-file read keeps the disk busy while the caller copies. Any other read
+//    resets the window, and so does a RANDOM hint of the calling thread.
+//  - Index blocks are read through Cache and retained there ahead of data
+//    blocks. Inodes and the directory are already kept in memory by
+//    FileSystem.
+//
+//  A write past the last block of a file allocates the new blocks from
+//  FileSystem's superblock and writes them through Cache as well; only
+//  the inode and the index block go to disk directly. Blocks that
+//  FileSystem frees are written around the cache, so FileCache drops the
+//  cached copies of those blocks before a truncating open or a delete.
+//
+//  SuperBlock does not synchronize its free list, so every change to it
+//  happens under fsLock: FileCache's own allocations and frees, and the
+//  FileSystem calls that allocate or free blocks (a truncating open,
+//  delete, format and sync). FileCache counts the opens of every file
+//  under the same lock and refuses to format while a file is open,
+//  since FileSystem would wait for them with the lock held.
+//
+//  The file system is mounted on the first file system call, so programs
+//  that only use the block level cache boot as before.
+//
+//-----------------------------------------------------------------------------
+
+import java.util.*;
+import java.lang.reflect.*;
+
+public class FileCache {
+
+    private static final int MAX_READAHEAD = 8; // Blocks
+    private static final int DIRECT_BLOCKS = 11; // Inode.directSize
+    private static final int NOT_RELEASED = -2; // See discardFile
+
+    private final Cache cache;
+    private final int diskBlocks;
+    private final int blockSize;
+    private FileSystem fs = null; // Mounted on first use
+    private SuperBlock superblock = null; // fs's free list, see superblock()
+    private final Object fsLock = new Object(); // Free list and openCount
+    // Opens of every file name that are not closed yet. Guarded by fsLock.
+    private Map<String, Integer> openCount = new HashMap<String, Integer>();
+
+    // Readahead state of every open file. Guarded by its own monitor, since
+    // FileSystem may block in open and format until other files are closed.
+    private Map<FileTableEntry, ReadAhead> readAhead =
+            new HashMap<FileTableEntry, ReadAhead>();
+
+    //======================= ReadAhead Class ==================================
+    //  Sequential read detection for one open file, and the name it was
+    //  opened by.
+    //
+    private static class ReadAhead {
+        final String fileName;
+        int nextOffset = 0; // Where a sequential read would start
+        int window = 0; // Blocks to read ahead, 0 while reads are random
+        int issuedTo = 0; // File blocks below this were already hinted
+
+        ReadAhead(String fileName) {
+            this.fileName = fileName;
+        }
+    }
+
+    public FileCache(Cache cache, int diskBlocks, int blockSize) {
+        this.cache = cache;
+        this.diskBlocks = diskBlocks;
+        this.blockSize = blockSize;
+    }
+
+    //======================= fs() =============================================
+    //  The mounted FileSystem. Mounting reads the superblock and directory.
+    //
+    private synchronized FileSystem fs() {
+        if (fs == null) {
+            fs = new FileSystem(diskBlocks);
+        }
+        return fs;
+    }
+
+    //======================= open(String, String) =============================
+    //  Opens fileName in mode "r", "w", "w+" or "a". Returns null on error.
+    //  Opening with "w" truncates the file, so its cached blocks are
+    //  dropped first. Fails if the file is already open, by any thread.
+    //
+    public FileTableEntry open(String fileName, String mode) {
+        FileTableEntry entry;
+        if (mode.equals("w")) {
+            synchronized (fsLock) {
+                entry = truncate(fileName);
+                countOpen(fileName, entry != null ? 1 : 0);
+            }
+        } else {
+            // Counted before FileSystem may wait in it, so that format
+            // sees the open.
+            synchronized (fsLock) {
+                countOpen(fileName, 1);
+            }
+            // FileSystem compares the mode by reference.
+            entry = fs().open(fileName, mode.intern());
+            if (entry == null) {
+                synchronized (fsLock) {
+                    countOpen(fileName, -1);
+                }
+            }
+        }
+        if (entry != null) {
+            synchronized (readAhead) {
+                readAhead.put(entry, new ReadAhead(fileName));
+            }
+        }
+        return entry;
+    }
+
+    //======================= truncate(String) =================================
+    //  Opens fileName with "w". Returns null if the file is open, since
+    //  FileSystem would wait for it to be closed with fsLock held. The
+    //  caller holds fsLock.
+    //
+    private FileTableEntry truncate(String fileName) {
+        if (openCount.containsKey(fileName)) {
+            return null;
+        }
+        int indexBlock = discardFile(fileName);
+        if (indexBlock == NOT_RELEASED) {
+            return null;
+        }
+        FileTableEntry entry = fs().open(fileName, "w");
+        if (entry != null) {
+            releaseBlock(indexBlock);
+            if (entry.inode.length > 0) {
+                // FileSystem frees the blocks but keeps the old length.
+                entry.inode.length = 0;
+                entry.inode.toDisk(entry.iNumber);
+            }
+        }
+        return entry;
+    }
+
+    //======================= countOpen(String, int) ===========================
+    //  Adds delta to the open count of fileName. The caller holds fsLock.
+    //
+    private void countOpen(String fileName, int delta) {
+        Integer count = openCount.get(fileName);
+        int opens = (count == null ? 0 : count) + delta;
+        if (opens > 0) {
+            openCount.put(fileName, opens);
+        } else {
+            openCount.remove(fileName);
+        }
+    }
+
+    //======================= close(FileTableEntry) ============================
+    //
+    public boolean close(FileTableEntry entry) {
+        if (entry == null || !fs().close(entry)) {
+            return false;
+        }
+        ReadAhead state = null;
+        synchronized (readAhead) {
+            if (entry.count <= 0) {
+                state = readAhead.remove(entry);
+            }
+        }
+        if (state != null) {
+            synchronized (fsLock) {
+                countOpen(state.fileName, -1);
+            }
+        }
+        return true;
+    }
+
+    //======================= size(FileTableEntry) =============================
+    //
+    public int size(FileTableEntry entry) {
+        return fs().fsize(entry);
+    }
+
+    //======================= seek(FileTableEntry, int, int) ===================
+    //  Moves the seek pointer, whence is SEEK_SET, SEEK_CUR or SEEK_END.
+    //  Returns the new seek pointer or -1.
+    //
+    public int seek(FileTableEntry entry, int offset, int whence) {
+        return fs().seek(entry, offset, whence);
+    }
+
+    //======================= format(int) ======================================
+    //  Drops the whole cache without writing it back, since formatting
+    //  overwrites every block, then formats the disk for the given number
+    //  of files. Returns false if a file is open.
+    //
+    public boolean format(int files) {
+        synchronized (fsLock) {
+            if (!openCount.isEmpty()) {
+                return false;
+            }
+            cache.invalidateRange(0, diskBlocks);
+            return fs().format(files);
+        }
+    }
+
+    //======================= delete(String) ===================================
+    //  Deletes fileName. Fails if the file is open, by any thread.
+    //
+    public boolean delete(String fileName) {
+        synchronized (fsLock) {
+            if (openCount.containsKey(fileName)) {
+                return false; // FileSystem would wait for it to be closed.
+            }
+            int indexBlock = discardFile(fileName);
+            if (indexBlock == NOT_RELEASED || !fs().delete(fileName)) {
+                return false;
+            }
+            releaseBlock(indexBlock);
+            return true;
+        }
+    }
+
+    //======================= sync() ===========================================
+    //  Writes the directory and superblock back, if the file system is
+    //  mounted.
+    //
+    public void sync() {
+        FileSystem mounted;
+        synchronized (this) {
+            mounted = fs;
+        }
+        if (mounted != null) {
+            synchronized (fsLock) {
+                mounted.sync();
+            }
+        }
+    }
+
+    //======================= read(FileTableEntry, byte) =======================
+    //  Reads up to buffer.length bytes at the seek pointer and advances it.
+    //  Returns the number of bytes read, or -1 on error.
+    //
+    public int read(FileTableEntry entry, byte buffer[]) {
+        if (entry == null || entry.mode.equals("w") || entry.mode.equals("a")) {
+            return -1;
+        }
+        synchronized (entry) {
+            int offset = entry.seekPtr;
+            int length = Math.min(buffer.length, entry.inode.length - offset);
+            if (length <= 0) {
+                return 0;
+            }
+            // The blocks past the first are read in the background while
+            // the first one is copied, at most MAX_READAHEAD blocks ahead
+            // so that they are not evicted again before they are copied.
+            int index = offset / blockSize;
+            int lastBlock = (offset + length - 1) / blockSize;
+            hint(entry.inode, index + 1,
+                 Math.min(index + 1 + MAX_READAHEAD, lastBlock + 1));
+            byte block[] = new byte[blockSize];
+            int done = 0;
+            while (done < length) {
+                index = (offset + done) / blockSize;
+                if (done > 0 && index + MAX_READAHEAD <= lastBlock) {
+                    hint(entry.inode, index + MAX_READAHEAD, index + MAX_READAHEAD + 1);
+                }
+                int blockId = blockFor(entry.inode, index);
+                int start = (offset + done) % blockSize;
+                int chunk = Math.min(blockSize - start, length - done);
+                if (blockId < 0 || !cache.read(blockId, block)) {
+                    break;
+                }
+                System.arraycopy(block, start, buffer, done, chunk);
+                done += chunk;
+            }
+            entry.seekPtr = offset + done;
+            if (done > 0) {
+                readAhead(entry, offset, done);
+            }
+            return done;
+        }
+    }
+
+    //======================= write(FileTableEntry, byte) ======================
+    //  Writes buffer at the seek pointer and advances it. Every block goes
+    //  through Cache; blocks past the end of the file are allocated first.
+    //  Returns the number of bytes written, or -1 on error.
+    //
+    public int write(FileTableEntry entry, byte buffer[]) {
+        if (entry == null || entry.mode.equals("r")) {
+            return -1;
+        }
+        synchronized (entry) {
+            byte block[] = new byte[blockSize];
+            int done = 0;
+            boolean grown = false;
+            while (done < buffer.length) {
+                int offset = entry.seekPtr;
+                int start = offset % blockSize;
+                int chunk = Math.min(blockSize - start, buffer.length - done);
+                int blockId = blockFor(entry.inode, offset / blockSize);
+                if (blockId < 0) {
+                    blockId = allocate(entry.inode, offset / blockSize);
+                    if (blockId < 0) {
+                        break;
+                    }
+                    grown = true;
+                    Arrays.fill(block, (byte)0);
+                } else if (chunk < blockSize && !cache.read(blockId, block)) {
+                    break;
+                }
+                System.arraycopy(buffer, done, block, start, chunk);
+                if (!cache.write(blockId, block)) {
+                    break;
+                }
+                entry.seekPtr += chunk;
+                done += chunk;
+            }
+            if (entry.seekPtr > entry.inode.length) {
+                entry.inode.length = entry.seekPtr;
+                grown = true;
+            }
+            if (grown) {
+                entry.inode.toDisk(entry.iNumber);
+            }
+            return (done > 0 || buffer.length == 0) ? done : -1;
+        }
+    }
+
+    //======================= allocate(Inode, int) =============================
+    //  Takes a block off the free list for block index of a file and
+    //  registers it in the inode, or in the index block, which is allocated
+    //  with the first indirect block. The caller writes the inode back.
+    //  Returns the new block, or -1 if the file or the disk is full.
+    //
+    private int allocate(Inode inode, int index) {
+        int slot = index - DIRECT_BLOCKS;
+        SuperBlock superblock = superblock();
+        if (superblock == null || slot >= blockSize / 2) {
+            return -1;
+        }
+        synchronized (fsLock) {
+            if (index < DIRECT_BLOCKS) {
+                int blockId = superblock.getFreeBlock();
+                if (blockId > -1) {
+                    inode.direct[index] = (short)blockId;
+                }
+                return blockId;
+            }
+            byte indexBlock[] = new byte[blockSize];
+            if (inode.indirect < 0) {
+                int indexBlockId = superblock.getFreeBlock();
+                if (indexBlockId < 0) {
+                    return -1;
+                }
+                Arrays.fill(indexBlock, (byte)-1); // Every entry unused
+                inode.indirect = (short)indexBlockId;
+            } else if (SysLib.rawread(inode.indirect, indexBlock) != Kernel.OK) {
+                return -1;
+            }
+            int blockId = superblock.getFreeBlock();
+            if (blockId > -1) {
+                SysLib.short2bytes((short)blockId, indexBlock, slot * 2);
+            }
+            // FileSystem reads index blocks from disk, so the cached copy
+            // is replaced rather than written.
+            SysLib.rawwrite(inode.indirect, indexBlock);
+            cache.invalidate(inode.indirect);
+            return blockId;
+        }
+    }
+
+    //======================= blockFor(Inode, int) =============================
+    //  Disk block holding block index of a file, -1 if it is not allocated.
+    //  The index block is read through the cache and retained there.
+    //
+    private int blockFor(Inode inode, int index) {
+        if (index < DIRECT_BLOCKS) {
+            return inode.direct[index];
+        }
+        int slot = index - DIRECT_BLOCKS;
+        if (inode.indirect < 0 || slot >= blockSize / 2) {
+            return -1;
+        }
+        byte indexBlock[] = new byte[blockSize];
+        if (!cache.readRetained(inode.indirect, indexBlock)) {
+            return -1;
+        }
+        return SysLib.bytes2short(indexBlock, slot * 2);
+    }
+
+    //======================= readAhead(FileTableEntry, int, int) ==============
+    //  Updates the readahead window after a read of length bytes at offset
+    //  and hints the blocks ahead of it that were not hinted yet.
+    //
+    private void readAhead(FileTableEntry entry, int offset, int length) {
+        ReadAhead state;
+        synchronized (readAhead) {
+            state = readAhead.get(entry);
+        }
+        if (state == null) {
+            return;
+        }
+        int lastBlock = (offset + length - 1) / blockSize;
+        int firstBlockId = blockFor(entry.inode, offset / blockSize);
+        if (offset != state.nextOffset
+                || cache.adviceFor(firstBlockId) == Kernel.CADV_RANDOM) {
+            state.window = 0;
+            state.issuedTo = 0;
+        } else {
+            state.window = Math.min(Math.max(state.window * 2, 2), MAX_READAHEAD);
+        }
+        state.nextOffset = offset + length;
+
+        int fileBlocks = (entry.inode.length + blockSize - 1) / blockSize;
+        int end = Math.min(lastBlock + 1 + state.window, fileBlocks);
+        hint(entry.inode, Math.max(lastBlock + 1, state.issuedTo), end);
+        state.issuedTo = Math.max(state.issuedTo, end);
+    }
+
+    //======================= hint(Inode, int, int) ============================
+    //  Hints file blocks first to end - 1 with WILLNEED. Runs of contiguous
+    //  disk blocks are hinted with one WILLNEED each.
+    //
+    private void hint(Inode inode, int first, int end) {
+        int runStart = -1;
+        int runLength = 0;
+        for (int i = first; i < end; i++) {
+            int blockId = blockFor(inode, i);
+            if (blockId < 0) {
+                break;
+            }
+            if (runLength > 0 && blockId == runStart + runLength) {
+                runLength++;
+                continue;
+            }
+            if (runLength > 0) {
+                cache.advise(runStart, runLength, Kernel.CADV_WILLNEED);
+            }
+            runStart = blockId;
+            runLength = 1;
+        }
+        if (runLength > 0) {
+            cache.advise(runStart, runLength, Kernel.CADV_WILLNEED);
+        }
+    }
+
+    //======================= discardFile(String) ==============================
+    //  Drops the cached blocks of fileName before FileSystem frees them,
+    //  so that no stale dirty copy is written over the free list later.
+    //  Does nothing if the file does not exist. The caller holds fsLock
+    //  and has checked that the file is not open, so the open here does
+    //  not wait.
+    //
+    //  FileSystem.deallocAllBlocks never moves past the first entry of an
+    //  index block and loops forever on a file that has one, so the blocks
+    //  it lists are freed here and the index block is emptied first.
+    //  FileSystem only unregisters the index block itself, so its id is
+    //  returned and the caller frees it with releaseBlock once FileSystem
+    //  has released the file; freeing it earlier would make FileSystem read
+    //  the free list link as index entries. Returns -1 if there is no
+    //  index block, or NOT_RELEASED if it cannot be emptied, in which case
+    //  FileSystem must not free the file.
+    //
+    private int discardFile(String fileName) {
+        FileTableEntry entry = fs().open(fileName, "r");
+        if (entry == null) {
+            return -1;
+        }
+        int indexBlock = -1;
+        if (entry.inode.count == 1) {
+            int fileBlocks = (entry.inode.length + blockSize - 1) / blockSize;
+            for (int i = 0; i < fileBlocks; i++) {
+                int blockId = blockFor(entry.inode, i);
+                if (blockId > -1) {
+                    cache.invalidate(blockId);
+                }
+            }
+            if (entry.inode.indirect > -1) {
+                cache.invalidate(entry.inode.indirect);
+                indexBlock = releaseIndexBlock(entry.inode.indirect)
+                        ? entry.inode.indirect : NOT_RELEASED;
+            }
+        }
+        fs().close(entry);
+        return indexBlock;
+    }
+
+    //======================= releaseIndexBlock(int) ===========================
+    //  Returns every block listed in an index block to the free list and
+    //  marks the index block empty. Returns false if the free list cannot
+    //  be reached.
+    //
+    private boolean releaseIndexBlock(int indexBlockId) {
+        SuperBlock superblock = superblock();
+        if (superblock == null) {
+            return false;
+        }
+        byte indexBlock[] = new byte[blockSize];
+        synchronized (fsLock) {
+            SysLib.rawread(indexBlockId, indexBlock);
+            for (int slot = 0; slot < blockSize / 2; slot++) {
+                short blockId = SysLib.bytes2short(indexBlock, slot * 2);
+                if (blockId == -1) {
+                    break;
+                }
+                superblock.returnBlock(blockId);
+                SysLib.short2bytes((short)-1, indexBlock, slot * 2);
+            }
+            SysLib.rawwrite(indexBlockId, indexBlock);
+        }
+        return true;
+    }
+
+    //======================= releaseBlock(int) ================================
+    //  Returns a block FileSystem no longer refers to to the free list.
+    //  Does nothing for -1.
+    //
+    private void releaseBlock(int blockId) {
+        SuperBlock superblock = superblock();
+        if (blockId < 0 || superblock == null) {
+            return;
+        }
+        synchronized (fsLock) {
+            superblock.returnBlock(blockId);
+        }
+    }
+
+    //======================= superblock() =====================================
+    //  The superblock of the mounted FileSystem, which keeps the free list.
+    //  FileSystem does not expose it, so it is looked up once by reflection.
+    //  Returns null if that fails.
+    //
+    private synchronized SuperBlock superblock() {
+        if (superblock == null) {
+            try {
+                Field field = FileSystem.class.getDeclaredField("superblock");
+                field.setAccessible(true);
+                superblock = (SuperBlock)field.get(fs());
+            } catch (Exception e) {
+                SysLib.cerr("FileCache: " + e + "\n");
+            }
+        }
+        return superblock;
+    }
+}
@@ -0,0 +1,123 @@
+//----------------------------------------------------------------------------
+//	FrequencySketch.java
+//	Author: Chad Dugie, David Trinh
+//----------------------------------------------------------------------------
+//	Description:
+//  FrequencySketch estimates how often each block has been accessed
+//  recently, for the TinyLFU admission filter in Cache. It is a count-min
+//  sketch of 4-bit counters packed sixteen to a long, with four hashed
+//  counters per block. A small Bloom filter (the doorkeeper) absorbs the
+//  first access of every block so one-hit wonders never reach the counters.
+//  After sampleSize recorded accesses every counter is halved and the
+//  doorkeeper is cleared, so old popularity fades.
+//
+//  FrequencySketch is not thread safe. Cache only uses it under a lock
+//  of its own and buffers the hits it serves without any lock.
+//
+//-----------------------------------------------------------------------------
+
+public class FrequencySketch {
+
+    private static final long RESET_MASK = 0x7777777777777777L; // Halve counters
+    private static final int MAX_COUNT = 15; // 4-bit counters
+
+    private long[] table; // Counters, 16 per word
+    private int counterMask; // Number of counters - 1
+    private long[] doorkeeper; // Bloom filter bits
+    private int doorkeeperMask; // Number of doorkeeper bits - 1
+    private int sampleSize; // Accesses between two resets
+    private int additions = 0; // Accesses since the last reset
+
+    //======================= FrequencySketch(int) =============================
+    //  Sizes the sketch for a cache of capacity blocks. Small caches still
+    //  get 1024 counters so that collisions stay rare.
+    //
+    public FrequencySketch(int capacity) {
+        int width = Integer.highestOneBit(Math.max(capacity, 64) - 1) << 1;
+        table = new long[width];
+        counterMask = width * 16 - 1;
+        doorkeeper = new long[width / 8];
+        doorkeeperMask = width * 8 - 1;
+        sampleSize = 10 * width;
+    }
+
+    //======================= hash(int, int) ===================================
+    //  Independent hash of blockId for each of the four rows.
+    //
+    private static int hash(int blockId, int row) {
+        int h = (blockId + row * 0x9E3779B9) * 0x85EBCA6B;
+        return h ^ (h >>> 15);
+    }
+
+    //======================= increment(int) ===================================
+    //  Records an access. The first access only sets the doorkeeper bits.
+    //
+    public void increment(int blockId) {
+        if (!doorkeeperPut(blockId)) {
+            for (int row = 0; row < 4; row++) {
+                int counter = hash(blockId, row) & counterMask;
+                int shift = (counter & 15) << 2;
+                long word = table[counter >>> 4];
+                if (((word >>> shift) & MAX_COUNT) < MAX_COUNT) {
+                    table[counter >>> 4] = word + (1L << shift);
+                }
+            }
+        }
+        if (++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    //======================= frequency(int) ===================================
+    //  Estimated number of recent accesses to blockId, between 0 and 16.
+    //
+    public int frequency(int blockId) {
+        int count = MAX_COUNT;
+        for (int row = 0; row < 4; row++) {
+            int counter = hash(blockId, row) & counterMask;
+            int value = (int)(table[counter >>> 4] >>> ((counter & 15) << 2)) & MAX_COUNT;
+            count = Math.min(count, value);
+        }
+        return doorkeeperContains(blockId) ? count + 1 : count;
+    }
+
+    //======================= doorkeeperPut(int) ===============================
+    //  Sets the two doorkeeper bits of blockId. Returns true if both were
+    //  already set, i.e. the block was seen since the last reset.
+    //
+    private boolean doorkeeperPut(int blockId) {
+        boolean seen = true;
+        for (int row = 0; row < 2; row++) {
+            int bit = hash(blockId, row + 4) & doorkeeperMask;
+            long mask = 1L << bit;
+            if ((doorkeeper[bit >>> 6] & mask) == 0) {
+                doorkeeper[bit >>> 6] |= mask;
+                seen = false;
+            }
+        }
+        return seen;
+    }
+
+    private boolean doorkeeperContains(int blockId) {
+        for (int row = 0; row < 2; row++) {
+            int bit = hash(blockId, row + 4) & doorkeeperMask;
+            if ((doorkeeper[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //======================= reset() ==========================================
+    //  Ages the sketch: halves every counter and clears the doorkeeper.
+    //
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        for (int i = 0; i < doorkeeper.length; i++) {
+            doorkeeper[i] = 0;
+        }
+        additions = 0;
+    }
+}
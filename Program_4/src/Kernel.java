@@ -1,6 +1,7 @@
 import java.util.*;
 import java.lang.reflect.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 public class Kernel
 {
@@ -36,6 +37,20 @@ public class Kernel
    public final static int FORMAT  = 18; // SysLib.format( int files )
    public final static int DELETE  = 19; // SysLib.delete( String fileName )
 
+   // System calls added on top of ThreadOS, wrapped by SysLibExt
+   public final static int DTIME   = 20; // SysLibExt.dtime( )
+   public final static int CPIN    = 21; // SysLibExt.cpin( int blk )
+   public final static int CUNPIN  = 22; // SysLibExt.cunpin( int blk )
+   public final static int CADVISE = 23; // SysLibExt.cadvise( int blk,
+   //              int count, int advice )
+
+   // Access pattern hints for CADVISE
+   public final static int CADV_NORMAL     = 0; // drop this thread's hint
+   public final static int CADV_SEQUENTIAL = 1; // use-once with readahead
+   public final static int CADV_RANDOM     = 2; // no readahead
+   public final static int CADV_WILLNEED   = 3; // prefetch in the background
+   public final static int CADV_DONTNEED   = 4; // write back and drop now
+
    // Predefined file descriptors
    public final static int STDIN  = 0;
    public final static int STDOUT = 1;
@@ -45,10 +60,16 @@ public class Kernel
    public final static int OK = 0;
    public final static int ERROR = -1;
 
+   // Disk size in blocks
+   private final static int DISK_BLOCKS = 1000;
+
    // System thread references
    private static Scheduler scheduler;
    private static Disk disk;
+   private static DiskScheduler diskScheduler;
    private static Cache cache;
+   private static FileCache files;
+   private static ThreadLocal<Integer> tids = new ThreadLocal<Integer>( ); // see myTid
 
    // Synchronized Queues
    private static SyncQueue waitQueue;  // for threads to wait for their child
@@ -64,6 +85,7 @@ public class Kernel
    // The heart of Kernel
    public static int interrupt( int irq, int cmd, int param, Object args ) {
       TCB myTcb;
+      FileTableEntry ftEnt; // open file of a file system call
       switch( irq ) {
          case INTERRUPT_SOFTWARE: // System calls
             switch( cmd ) { 
@@ -72,16 +94,41 @@ public class Kernel
                   scheduler = new Scheduler( ); 
                   scheduler.start( );
 
-                  // instantiate and start a disk
-                  disk = new Disk( 1000 );
+                  // instantiate and start a disk, or a disk that only
+                  // models its delays when run with -Dthreados.disk=virtual
+                  if ( "virtual".equals( System.getProperty( "threados.disk" ) ) )
+                     disk = new VirtualDisk( DISK_BLOCKS );
+                  else
+                     disk = new Disk( DISK_BLOCKS );
                   disk.start( );
 
-                  // instantiate a cache memory
-                  cache = new Cache( disk.blockSize, 10 );
+                  // one disk request at a time, most urgent I/O class first
+                  diskScheduler = new DiskScheduler( );
+
+                  // instantiate a cache memory, backed by a file victim
+                  // cache of -Dthreados.victim=<blocks> blocks if given.
+                  // -Dthreados.admission=off turns off TinyLFU admission
+                  cache = new Cache( Disk.blockSize, 10, DISK_BLOCKS,
+                                     Integer.getInteger( "threados.victim", 0 ),
+                                     !"off".equals( System.getProperty( "threados.admission" ) ) );
+
+                  // file system calls, the file system is mounted on first use
+                  files = new FileCache( cache, DISK_BLOCKS, Disk.blockSize );
 
                   // instantiate synchronized queues
                   ioQueue = new SyncQueue( );
                   waitQueue = new SyncQueue( scheduler.getMaxThreads( ) );
+
+                  // prefetch the blocks that were hot at the last sync. When
+                  // the loader quits, write the file system and the cache
+                  // back, which also remembers the hot blocks again
+                  cache.warmUp( );
+                  Runtime.getRuntime( ).addShutdownHook( new Thread( ) {
+                     public void run( ) {
+                        files.sync( );
+                        cache.sync( );
+                     }
+                  } );
                   return OK;
                case EXEC:
                   return sysExec( ( String[] )args );
@@ -109,23 +156,11 @@ public class Kernel
                   scheduler.sleepThread( param ); // param = milliseconds
                   return OK;
                case RAWREAD: // read a block of data from disk
-                  while ( disk.read( param, ( byte[] )args ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
-                  return OK;
+                  return diskRequest( RAWREAD, param, ( byte[] )args );
                case RAWWRITE: // write a block of data to disk
-                  while ( disk.write( param, ( byte[] )args ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
-                  return OK;
+                  return diskRequest( RAWWRITE, param, ( byte[] )args );
                case SYNC:     // synchronize disk data to a real file
-                  while ( disk.sync( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
-                  return OK;
+                  return diskRequest( SYNC, -1, null );
                case READ:
                   switch ( param ) {
                      case STDIN:
@@ -151,7 +186,11 @@ public class Kernel
                         System.out.println( "threaOS: caused read errors" );
                         return ERROR;
                   }
-                  // return FileSystem.read( param, byte args[] );
+                  if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
+                     ftEnt = myTcb.getFtEnt( param );
+                     if ( ftEnt != null )
+                        return files.read( ftEnt, ( byte[] )args );
+                  }
                   return ERROR;
                case WRITE:
                   switch ( param ) {
@@ -164,6 +203,13 @@ public class Kernel
                      case STDERR:
                         System.err.print( (String)args );
                         break;
+                     default:
+                        if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
+                           ftEnt = myTcb.getFtEnt( param );
+                           if ( ftEnt != null )
+                              return files.write( ftEnt, ( byte[] )args );
+                        }
+                        return ERROR;
                   }
                   return OK;
                case CREAD:   // to be implemented in assignment 4
@@ -171,23 +217,67 @@ public class Kernel
                case CWRITE:  // to be implemented in assignment 4
                   return cache.write( param, ( byte[] )args ) ? OK : ERROR;
                case CSYNC:   // to be implemented in assignment 4
+                  files.sync( ); // directory and superblock, if mounted
                   cache.sync( );
                   return OK;
                case CFLUSH:  // to be implemented in assignment 4
                   cache.flush( );
                   return OK;
-               case OPEN:    // to be implemented in project
-                  return OK;
-               case CLOSE:   // to be implemented in project
-                  return OK;
-               case SIZE:    // to be implemented in project
-                  return OK;
-               case SEEK:    // to be implemented in project
-                  return OK;
-               case FORMAT:  // to be implemented in project
-                  return OK;
-               case DELETE:  // to be implemented in project
+               case OPEN:    // args = { fileName, mode }
+                  if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
+                     String s[] = ( String[] )args;
+                     ftEnt = files.open( s[0], s[1] );
+                     if ( ftEnt == null )
+                        return ERROR;
+                     int fd = myTcb.getFd( ftEnt );
+                     if ( fd < 0 )
+                        files.close( ftEnt ); // no free descriptor
+                     return fd;
+                  }
+                  return ERROR;
+               case CLOSE:
+                  if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
+                     ftEnt = myTcb.getFtEnt( param );
+                     if ( ftEnt == null || !files.close( ftEnt ) )
+                        return ERROR;
+                     myTcb.returnFd( param );
+                     return OK;
+                  }
+                  return ERROR;
+               case SIZE:
+                  if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
+                     ftEnt = myTcb.getFtEnt( param );
+                     if ( ftEnt != null )
+                        return files.size( ftEnt );
+                  }
+                  return ERROR;
+               case SEEK:    // args = { offset, whence }
+                  if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
+                     int seekArgs[] = ( int[] )args;
+                     ftEnt = myTcb.getFtEnt( param );
+                     if ( ftEnt != null )
+                        return files.seek( ftEnt, seekArgs[0], seekArgs[1] );
+                  }
+                  return ERROR;
+               case FORMAT:  // param = maximum number of files
+                  return files.format( param ) ? OK : ERROR;
+               case DELETE:  // args = fileName
+                  return files.delete( ( String )args ) ? OK : ERROR;
+               case CPIN:    // pin a cached block, args[0] gets a read-only view
+                  ByteBuffer view = cache.pin( param );
+                  if ( view == null )
+                     return ERROR;
+                  ( ( ByteBuffer[] )args )[0] = view;
                   return OK;
+               case CUNPIN:  // release a pin taken with CPIN
+                  return cache.unpin( param ) ? OK : ERROR;
+               case CADVISE: // args = { blk, count }, param = advice
+                  int range[] = ( int[] )args;
+                  return cache.advise( range[0], range[1], param ) ? OK : ERROR;
+               case DTIME:   // modeled disk time of this thread in msec
+                  if ( disk instanceof VirtualDisk )
+                     return ( int )( ( VirtualDisk )disk ).modeledTime( );
+                  return ERROR;
             }
             return ERROR;
          case INTERRUPT_DISK: // Disk interrupts
@@ -204,6 +294,67 @@ public class Kernel
       return OK;
    }
 
+   // issues a RAWREAD, RAWWRITE or SYNC and waits for it to finish. The
+   // request holds the disk slot of diskScheduler, in the I/O class of
+   // the calling thread, from acquire to release. Returns ERROR for a
+   // block off the disk or a canceled prefetch
+   private static int diskRequest( int command, int blockId, byte buffer[] ) {
+      if ( command != SYNC && ( blockId < 0 || blockId >= DISK_BLOCKS ) )
+         return ERROR; // Disk would refuse it forever
+      int ioClass = DiskScheduler.ioClass( command == RAWREAD ?
+                                           DiskScheduler.DEMAND_READ :
+                                           DiskScheduler.SYNC_WRITE );
+      DiskRequestEvent diskEvent = new DiskRequestEvent(
+         command == RAWREAD ? "read" : command == RAWWRITE ? "write" : "sync",
+         blockId, ioClass );
+      if ( !diskScheduler.acquire( ioClass, blockId ) )
+         return ERROR; // canceled prefetch
+      try {
+         while ( startRequest( command, blockId, buffer ) == false )
+            ioQueue.enqueueAndSleep( COND_DISK_REQ );
+         diskEvent.accepted( );
+         while ( disk.testAndResetReady( ) == false )
+            ioQueue.enqueueAndSleep( COND_DISK_FIN );
+      } finally {
+         diskScheduler.release( ); // even if the request threw
+      }
+      diskEvent.finish( );
+      return OK;
+   }
+
+   // hands a request to the disk, false if the disk is busy
+   private static boolean startRequest( int command, int blockId,
+                                        byte buffer[] ) {
+      switch ( command ) {
+         case RAWREAD:
+            return disk.read( blockId, buffer );
+         case RAWWRITE:
+            return disk.write( blockId, buffer );
+         default:
+            return disk.sync( );
+      }
+   }
+
+   // ThreadOS tid of the calling thread, or -1 for threads the scheduler
+   // does not know, e.g. the cache warm-up thread. getMyTcb locks the
+   // scheduler and scans its TCBs, so each thread looks its tid up once
+   static int myTid( ) {
+      Integer tid = tids.get( );
+      if ( tid == null ) {
+         TCB myTcb = ( scheduler != null ) ? scheduler.getMyTcb( ) : null;
+         tid = ( myTcb != null ) ? myTcb.getTid( ) : -1;
+         tids.set( tid );
+      }
+      return tid;
+   }
+
+   // Cancels the prefetches of blocks in [first, end) still waiting for
+   // the disk, called by the cache when it drops those blocks
+   static void cancelPrefetch( int first, int end ) {
+      if ( diskScheduler != null )
+         diskScheduler.cancelPrefetch( first, end );
+   }
+
    // Spawning a new thread
    private static int sysExec( String args[] ) {
       String thrName = args[0]; // args[0] has a thread name
@@ -0,0 +1,124 @@
+//----------------------------------------------------------------------------
+//	SysLibExt.java
+//	Author: Chad Dugie, David Trinh
+//----------------------------------------------------------------------------
+//	Description:
+//  User-level wrappers for the system calls added to Kernel on top of the
+//  ThreadOS distribution. SysLib only ships as a class file, so the new
+//  calls live here and are used the same way, e.g. SysLibExt.dtime( ).
+//  That includes the file system calls, which the shipped SysLib lacks.
+//
+//-----------------------------------------------------------------------------
+
+import java.nio.ByteBuffer;
+
+public class SysLibExt {
+
+    //======================= dtime() ==========================================
+    //  Returns the modeled disk time in msec charged to the calling thread,
+    //  or Kernel.ERROR if ThreadOS is not running on a VirtualDisk.
+    //
+    public static int dtime() {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+                Kernel.DTIME, 0, null);
+    }
+
+    //======================= cpin(int) ========================================
+    //  Pins blockId in the disk cache and returns a read-only view of its
+    //  frame, so scans do not copy the block. Returns null on an error.
+    //  Every successful cpin must be matched by a cunpin.
+    //
+    public static ByteBuffer cpin(int blockId) {
+        ByteBuffer[] view = new ByteBuffer[1];
+        if (Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+                Kernel.CPIN, blockId, view) != Kernel.OK) {
+            return null;
+        }
+        return view[0];
+    }
+
+    //======================= cunpin(int) ======================================
+    //  Releases a pin taken with cpin. The view must not be used afterwards.
+    //
+    public static int cunpin(int blockId) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+                Kernel.CUNPIN, blockId, null);
+    }
+
+    //======================= cadvise(int, int, int) ===========================
+    //  Tells the disk cache how blocks blk to blk + count - 1 will be used.
+    //  advice is one of the Kernel.CADV_ constants.
+    //
+    public static int cadvise(int blockId, int count, int advice) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+                Kernel.CADVISE, advice, new int[] {blockId, count});
+    }
+
+    //======================= open(String, String) =============================
+    //  Opens fileName in mode "r", "w", "w+" or "a". Returns a file
+    //  descriptor, or Kernel.ERROR.
+    //
+    public static int open(String fileName, String mode) {
+        String[] args = {fileName, mode};
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+                Kernel.OPEN, 0, args);
+    }
+
+    //======================= read(int, byte) ==================================
+    //  Reads up to buffer.length bytes from fd at its seek pointer. Returns
+    //  the number of bytes read, or Kernel.ERROR.
+    //
+    public static int read(int fd, byte buffer[]) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+                Kernel.READ, fd, buffer);
+    }
+
+    //======================= write(int, byte) =================================
+    //  Writes buffer to fd at its seek pointer. Returns the number of bytes
+    //  written, or Kernel.ERROR.
+    //
+    public static int write(int fd, byte buffer[]) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+                Kernel.WRITE, fd, buffer);
+    }
+
+    //======================= seek(int, int, int) ==============================
+    //  whence is 0 (from the start), 1 (from the seek pointer) or 2 (from
+    //  the end). Returns the new seek pointer, or Kernel.ERROR.
+    //
+    public static int seek(int fd, int offset, int whence) {
+        int[] args = {offset, whence};
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+                Kernel.SEEK, fd, args);
+    }
+
+    //======================= close(int) =======================================
+    //
+    public static int close(int fd) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+                Kernel.CLOSE, fd, null);
+    }
+
+    //======================= fsize(int) =======================================
+    //  Returns the size of the file in bytes, or Kernel.ERROR.
+    //
+    public static int fsize(int fd) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+                Kernel.SIZE, fd, null);
+    }
+
+    //======================= delete(String) ===================================
+    //
+    public static int delete(String fileName) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+                Kernel.DELETE, 0, fileName);
+    }
+
+    //======================= format(int) ======================================
+    //  Formats the disk for at most files files.
+    //
+    public static int format(int files) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+                Kernel.FORMAT, files, null);
+    }
+}
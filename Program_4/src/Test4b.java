@@ -0,0 +1,219 @@
+//-----------------------------------------------------------------------------
+//	Test4b.java
+//  Authors: Chad Dugie, David Trinh
+//-----------------------------------------------------------------------------
+//	Description:
+//  Test4b checks the system calls added on top of the disk cache, the way
+//  Test4 checks cread and cwrite. Run it as "l Test4b" and it prints one
+//  line per check and a summary:
+//
+//  - cpin and cunpin: the pinned view shows the block and later cwrites
+//    of it, a second cunpin and a block off the disk are refused.
+//  - cadvise: WILLNEED, SEQUENTIAL and DONTNEED keep the data intact,
+//    DONTNEED writes dirty blocks back, and unknown hints are refused.
+//  - Files: open, write past the direct blocks, seek, read, overwrite,
+//    truncate with "w" and delete, including a delete of a file that is
+//    still open, which must fail instead of waiting for the close.
+//
+//  The block checks use blocks at the end of the disk and run before the
+//  file checks, which format the disk.
+//
+//-----------------------------------------------------------------------------
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+public class Test4b extends Thread {
+    private static final int BSIZE = 512;
+    private static final int FIRST_BLOCK = 950; // Used by the block checks
+    private static final int FILE_BLOCKS = 30; // Spans the index block
+
+    private int passed = 0;
+    private int failed = 0;
+
+    public Test4b()
+    {
+    }
+
+    public Test4b(String[] args)
+    {
+    }
+
+    //======================= run() ============================================
+    //  Runs every group of checks and prints the summary.
+    //
+    public void run()
+    {
+        pinTest();
+        adviseTest();
+        fileTest();
+        SysLib.cout("Test4b: " + passed + " passed, " + failed + " failed\n");
+        SysLib.exit();
+    }
+
+    //======================= pinTest() ========================================
+    //  cpin and cunpin.
+    //
+    private void pinTest()
+    {
+        byte[] buffer = new byte[BSIZE];
+        fill(buffer, 1);
+        SysLib.cwrite(FIRST_BLOCK, buffer);
+        ByteBuffer view = SysLibExt.cpin(FIRST_BLOCK);
+        check("cpin returns a view", view != null);
+        if (view == null) {
+            return;
+        }
+        check("pinned view holds the block", matches(view, 1));
+        fill(buffer, 2);
+        SysLib.cwrite(FIRST_BLOCK, buffer);
+        check("cwrite shows through the pinned view", matches(view, 2));
+        check("cunpin releases the pin",
+                SysLibExt.cunpin(FIRST_BLOCK) == Kernel.OK);
+        check("second cunpin is refused",
+                SysLibExt.cunpin(FIRST_BLOCK) == Kernel.ERROR);
+        check("cpin of a block off the disk is refused",
+                SysLibExt.cpin(1000) == null);
+    }
+
+    //======================= adviseTest() =====================================
+    //  cadvise with every hint.
+    //
+    private void adviseTest()
+    {
+        int first = FIRST_BLOCK + 10;
+        int count = 20;
+        byte[] buffer = new byte[BSIZE];
+        for (int i = 0; i < count; i++) {
+            fill(buffer, first + i);
+            SysLib.rawwrite(first + i, buffer);
+        }
+        SysLib.flush();
+
+        check("WILLNEED is accepted",
+                SysLibExt.cadvise(first, count, Kernel.CADV_WILLNEED) == Kernel.OK);
+        check("WILLNEED blocks read back", readsBack(first, count));
+
+        check("SEQUENTIAL is accepted",
+                SysLibExt.cadvise(first, count, Kernel.CADV_SEQUENTIAL) == Kernel.OK);
+        check("SEQUENTIAL blocks read back", readsBack(first, count));
+        SysLibExt.cadvise(first, count, Kernel.CADV_NORMAL);
+
+        fill(buffer, 77);
+        SysLib.cwrite(first, buffer);
+        check("DONTNEED is accepted",
+                SysLibExt.cadvise(first, count, Kernel.CADV_DONTNEED) == Kernel.OK);
+        byte[] disk = new byte[BSIZE];
+        SysLib.rawread(first, disk);
+        check("DONTNEED writes dirty blocks back", Arrays.equals(disk, buffer));
+
+        check("unknown hint is refused",
+                SysLibExt.cadvise(first, count, 99) == Kernel.ERROR);
+    }
+
+    //======================= fileTest() =======================================
+    //  File system calls.
+    //
+    private void fileTest()
+    {
+        check("format", SysLibExt.format(16) == Kernel.OK);
+
+        byte[] data = new byte[FILE_BLOCKS * BSIZE + 100];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte)(i * 7 + i / BSIZE);
+        }
+        int fd = SysLibExt.open("test4b", "w+");
+        check("open w+", fd >= 3);
+        check("write past the direct blocks",
+                SysLibExt.write(fd, data) == data.length);
+        check("fsize", SysLibExt.fsize(fd) == data.length);
+
+        check("seek to the start", SysLibExt.seek(fd, 0, 0) == 0);
+        byte[] in = new byte[data.length];
+        check("read the whole file", SysLibExt.read(fd, in) == data.length
+                && Arrays.equals(in, data));
+
+        byte[] patch = new byte[BSIZE * 3];
+        Arrays.fill(patch, (byte)42);
+        SysLibExt.seek(fd, 5000, 0);
+        SysLibExt.write(fd, patch);
+        System.arraycopy(patch, 0, data, 5000, patch.length);
+        SysLibExt.seek(fd, 0, 0);
+        check("overwrite in place", SysLibExt.read(fd, in) == data.length
+                && Arrays.equals(in, data));
+
+        check("delete of an open file is refused",
+                SysLibExt.delete("test4b") == Kernel.ERROR);
+        check("close", SysLibExt.close(fd) == Kernel.OK);
+
+        fd = SysLibExt.open("test4b", "w");
+        check("open w truncates", fd >= 3 && SysLibExt.fsize(fd) == 0);
+        byte[] small = new byte[700];
+        Arrays.fill(small, (byte)5);
+        SysLibExt.write(fd, small);
+        SysLibExt.close(fd);
+        fd = SysLibExt.open("test4b", "r");
+        byte[] back = new byte[1000];
+        check("read after truncate", SysLibExt.read(fd, back) == small.length
+                && back[0] == 5 && back[small.length - 1] == 5);
+        SysLibExt.close(fd);
+
+        check("delete", SysLibExt.delete("test4b") == Kernel.OK);
+        check("deleted file does not open",
+                SysLibExt.open("test4b", "r") == Kernel.ERROR);
+    }
+
+    //======================= readsBack(int, int) ==============================
+    //  True if blocks first to first + count - 1 read back through the cache
+    //  as written by adviseTest.
+    //
+    private boolean readsBack(int first, int count)
+    {
+        byte[] buffer = new byte[BSIZE];
+        byte[] expected = new byte[BSIZE];
+        for (int i = 0; i < count; i++) {
+            fill(expected, first + i);
+            if (SysLib.cread(first + i, buffer) != Kernel.OK
+                    || !Arrays.equals(buffer, expected)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //======================= fill(byte[], int) ================================
+    //  Fills a block with a pattern derived from seed.
+    //
+    private void fill(byte[] buffer, int seed)
+    {
+        for (int i = 0; i < BSIZE; i++) {
+            buffer[i] = (byte)(seed + i);
+        }
+    }
+
+    //======================= matches(ByteBuffer, int) =========================
+    //  True if view holds the pattern of seed.
+    //
+    private boolean matches(ByteBuffer view, int seed)
+    {
+        for (int i = 0; i < BSIZE; i++) {
+            if (view.get(i) != (byte)(seed + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //======================= check(String, boolean) ===========================
+    //  Prints the outcome of one check.
+    //
+    private void check(String name, boolean ok)
+    {
+        if (ok) {
+            passed++;
+        } else {
+            failed++;
+        }
+        SysLib.cout((ok ? "OK    " : "FAIL  ") + name + "\n");
+    }
+}
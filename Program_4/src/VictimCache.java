@@ -0,0 +1,124 @@
+//----------------------------------------------------------------------------
+//	VictimCache.java
+//	Author: Chad Dugie, David Trinh
+//----------------------------------------------------------------------------
+//	Description:
+//  VictimCache is an optional second level below Cache, kept in a local
+//  memory-mapped file instead of the heap. Blocks evicted from Cache are
+//  appended to the file as a circular log, so every insert is a sequential
+//  write at the log head and the oldest block is the one overwritten.
+//  An in-memory index maps block ids to their slot in the log.
+//
+//  The tier is exclusive and only holds clean data: Cache writes a dirty
+//  victim back to DISK before handing it over, and a block found here is
+//  removed again when it moves back into Cache. The file is scratch space
+//  and is not trusted across boots.
+//
+//-----------------------------------------------------------------------------
+
+import java.util.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class VictimCache {
+
+    private static final String VICTIM_FILE = "VICTIM"; // Kept next to DISK
+
+    private final int blockSize;
+    private MappedByteBuffer log; // slots * blockSize bytes, at most 2 GB
+    private int[] slotOwner; // Block id held by each slot, -1 if unused
+    private Map<Integer, Integer> index = new HashMap<Integer, Integer>();
+    private int head = 0; // Next slot to append to
+
+    //======================= VictimCache(int, int) ============================
+    //  Maps a file large enough for the given number of blocks. Throws
+    //  IOException if the file cannot be created or mapped, or if it
+    //  would exceed the 2 GB a single mapping can address. That bound
+    //  also keeps every slot offset, slot * blockSize, within an int.
+    //
+    public VictimCache(int blockSize, int blocks) throws IOException {
+        if ((long)blocks * blockSize > Integer.MAX_VALUE) {
+            throw new IOException("victim cache of " + blocks
+                    + " blocks is larger than one mapping");
+        }
+        this.blockSize = blockSize;
+        slotOwner = new int[blocks];
+        Arrays.fill(slotOwner, -1);
+        RandomAccessFile file = new RandomAccessFile(VICTIM_FILE, "rw");
+        try {
+            log = file.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                    0, (long)blocks * blockSize);
+        } finally {
+            file.close(); // The mapping stays valid after close.
+        }
+    }
+
+    //======================= get(int, byte) ===================================
+    //  Copies blockId into buffer and drops it from the log. Returns false if
+    //  the block is not here.
+    //
+    public synchronized boolean get(int blockId, byte buffer[]) {
+        Integer slot = index.remove(blockId);
+        if (slot == null) {
+            return false;
+        }
+        slotOwner[slot] = -1;
+        ByteBuffer view = log.duplicate();
+        view.position(slot * blockSize);
+        view.get(buffer, 0, blockSize);
+        return true;
+    }
+
+    //======================= peek(int, byte) ==================================
+    //  Copies blockId into buffer but keeps it in the log, for reads that
+    //  Cache does not admit. Returns false if the block is not here.
+    //
+    public synchronized boolean peek(int blockId, byte buffer[]) {
+        Integer slot = index.get(blockId);
+        if (slot == null) {
+            return false;
+        }
+        ByteBuffer view = log.duplicate();
+        view.position(slot * blockSize);
+        view.get(buffer, 0, blockSize);
+        return true;
+    }
+
+    //======================= put(int, byte) ===================================
+    //  Appends a clean copy of blockId at the log head, overwriting the
+    //  oldest slot. An older copy of the same block is dropped first.
+    //
+    public synchronized void put(int blockId, byte buffer[]) {
+        invalidate(blockId);
+        if (slotOwner[head] > -1) {
+            index.remove(slotOwner[head]);
+        }
+        ByteBuffer view = log.duplicate();
+        view.position(head * blockSize);
+        view.put(buffer, 0, blockSize);
+        slotOwner[head] = blockId;
+        index.put(blockId, head);
+        head = (head + 1) % slotOwner.length;
+    }
+
+    //======================= invalidate(int) ==================================
+    //  Drops blockId, used when Cache gets a newer copy of the block.
+    //
+    public synchronized void invalidate(int blockId) {
+        Integer slot = index.remove(blockId);
+        if (slot != null) {
+            slotOwner[slot] = -1;
+        }
+    }
+
+    //======================= clear() ==========================================
+    //  Drops every block.
+    //
+    public synchronized void clear() {
+        index.clear();
+        Arrays.fill(slotOwner, -1);
+        head = 0;
+    }
+}
@@ -0,0 +1,155 @@
+//----------------------------------------------------------------------------
+//	VirtualDisk.java
+//	Author: Chad Dugie, David Trinh
+//----------------------------------------------------------------------------
+//	Description:
+//  VirtualDisk is a drop-in replacement for Disk that uses the same seek and
+//  transfer cost model but charges the modeled time instead of sleeping.
+//  A request costs transferTime plus delayPerTrack for every track the head
+//  moves, exactly as in Disk.seek(), and completes as soon as it is issued.
+//  The modeled time is charged to the thread that issued the request and
+//  can be read back with the DTIME system call, so benchmarks can report
+//  repeatable device time next to their wall-clock time.
+//
+//  Kernel uses it when ThreadOS is started with -Dthreados.disk=virtual.
+//
+//-----------------------------------------------------------------------------
+
+import java.io.*;
+
+public class VirtualDisk extends Disk {
+
+    // Same cost model as Disk.
+    private final int trackSize = 10; // Blocks per track
+    private final int transferTime = 20; // Milliseconds per transfer
+    private final int delayPerTrack = 1; // Milliseconds per track of seek
+
+    private int diskSize;
+    private byte[] data;
+    private int currentBlockId = 0; // Head position
+    private boolean readyBuffer = false; // Completed request not yet collected
+
+    private ThreadLocal<long[]> threadTime = new ThreadLocal<long[]>() {
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    //======================= VirtualDisk(int) =================================
+    //  Loads the DISK file the same way Disk does. Disk's own image is not
+    //  used, so it is given the smallest size it allows, one block.
+    //
+    public VirtualDisk(int totalBlocks) {
+        super(0);
+        diskSize = (totalBlocks > 0) ? totalBlocks : 1;
+        data = new byte[diskSize * blockSize];
+        try {
+            FileInputStream in = new FileInputStream("DISK");
+            in.read(data, 0, Math.min(in.available(), data.length));
+            in.close();
+        } catch (FileNotFoundException e) {
+            // Disk has already reported that a new DISK is created.
+        } catch (IOException e) {
+            SysLib.cerr(e.toString() + "\n");
+        }
+    }
+
+    //======================= run() ============================================
+    //  Requests complete synchronously, so there is no disk thread.
+    //
+    public void run() {
+    }
+
+    //======================= seek(int) ========================================
+    //  Moves the head to targetBlockId and charges the modeled time of the
+    //  request to the calling thread.
+    //
+    private void seek(int targetBlockId) {
+        long cost = transferTime
+                + delayPerTrack * Math.abs(targetBlockId / trackSize - currentBlockId / trackSize);
+        threadTime.get()[0] += cost;
+        currentBlockId = targetBlockId;
+    }
+
+    //======================= read(int, byte) ==================================
+    //  Returns false if the previous request has not been collected yet with
+    //  testAndResetReady, like a busy Disk.
+    //
+    public synchronized boolean read(int blockId, byte buffer[]) {
+        if (blockId < 0 || blockId >= diskSize) {
+            SysLib.cerr("threadOS: a wrong blockId for read\n");
+            return false;
+        }
+        if (readyBuffer) {
+            return false;
+        }
+        seek(blockId);
+        System.arraycopy(data, blockId * blockSize, buffer, 0, blockSize);
+        readyBuffer = true;
+        return true;
+    }
+
+    //======================= write(int, byte) =================================
+    //
+    public synchronized boolean write(int blockId, byte buffer[]) {
+        if (blockId < 0 || blockId >= diskSize) {
+            SysLib.cerr("threadOS: a wrong blockId for write\n");
+            return false;
+        }
+        if (readyBuffer) {
+            return false;
+        }
+        seek(blockId);
+        System.arraycopy(buffer, 0, data, blockId * blockSize, blockSize);
+        readyBuffer = true;
+        return true;
+    }
+
+    //======================= sync() ===========================================
+    //  Writes the disk image back to the DISK file. Disk charges a sync
+    //  as a transfer at the current head position.
+    //
+    public synchronized boolean sync() {
+        if (readyBuffer) {
+            return false;
+        }
+        seek(currentBlockId);
+        try {
+            FileOutputStream out = new FileOutputStream("DISK");
+            out.write(data);
+            out.close();
+        } catch (IOException e) {
+            SysLib.cerr(e.toString() + "\n");
+        }
+        readyBuffer = true;
+        return true;
+    }
+
+    //======================= testAndResetReady() ==============================
+    //  Collects the completed request. Raises a disk interrupt so that a
+    //  thread that found the disk busy retries its request.
+    //
+    public boolean testAndResetReady() {
+        synchronized (this) {
+            if (!readyBuffer) {
+                return false;
+            }
+            readyBuffer = false;
+        }
+        SysLib.disk();
+        return true;
+    }
+
+    //======================= testReady() ======================================
+    //
+    public synchronized boolean testReady() {
+        return readyBuffer;
+    }
+
+    //======================= modeledTime() ====================================
+    //  Modeled device time in msec charged to the calling thread.
+    //
+    public long modeledTime() {
+        return threadTime.get()[0];
+    }
+}
@@ -0,0 +1,330 @@
+//-----------------------------------------------------------------------------
+//	Workload.java
+//  Authors: Chad Dugie, David Trinh
+//-----------------------------------------------------------------------------
+//	Description:
+//  Workload is a configurable benchmark driver for Cache.java that replaces
+//  the four fixed cases of Test4. It runs a seeded access distribution from
+//  one or more client threads, times every operation with System.nanoTime
+//  and prints throughput and latency percentiles as one CSV row.
+//
+//  Usage (all arguments optional, in any order):
+//    l Workload cache=enabled dist=zipf ops=200 blocks=100 reads=0.5
+//               threads=1 seed=1 theta=0.99 hot=0.1 header=true
+//
+//    cache   enabled | disabled  use cread/cwrite or rawread/rawwrite
+//    dist    uniform | zipf | hotcold | scan | mixed
+//    ops     operations issued by each client thread
+//    blocks  working set size in blocks, starting at block 0
+//    reads   fraction of operations that are reads (0.0 - 1.0)
+//    threads number of concurrent client threads
+//    seed    random seed, client i uses seed + i
+//    theta   Zipf skew, only used by dist=zipf
+//    hot     hot fraction of the working set, only used by dist=hotcold.
+//            90% of the accesses go to the hot blocks.
+//    header  print the CSV header line before the result row
+//
+//  dist=mixed is the Test4 mixed case: 90% of the accesses go to the first
+//  10 blocks and 10% are spread uniformly across the working set.
+//
+//  When ThreadOS runs on a VirtualDisk (-Dthreados.disk=virtual) the row
+//  also reports the modeled disk time: the total over all operations and
+//  its p50/p99 per operation, in msec. These columns are empty on Disk.
+//
+//-----------------------------------------------------------------------------
+
+import java.util.*;
+
+public class Workload extends Thread {
+    private static final int BSIZE = 512;
+    private static final int DISK_BLOCKS = 1000; // Disk size set in Kernel
+
+    private static final String[] DISTRIBUTIONS =
+            {"uniform", "zipf", "hotcold", "scan", "mixed"};
+
+    // Configuration, shared with the client threads. Reset by every
+    // Workload so one run does not inherit the arguments of the last.
+    private static boolean useCache;
+    private static String dist;
+    private static int ops;
+    private static int blocks;
+    private static double readRatio;
+    private static int threads;
+    private static long seed;
+    private static double theta;
+    private static double hotFraction;
+    private static boolean header;
+
+    private static double[] zipfCdf; // Cumulative Zipf probabilities
+    private static long[][] latencies; // Nanoseconds per op, per client
+    private static long[][] modeled; // Modeled disk msec per op, per client
+
+    public Workload(String[] args)
+    {
+        useCache = true;
+        dist = "uniform";
+        ops = 200;
+        blocks = 100;
+        readRatio = 0.5;
+        threads = 1;
+        seed = 1;
+        theta = 0.99;
+        hotFraction = 0.1;
+        header = true;
+        for (int i = 0; i < args.length; i++) {
+            parse(args[i]);
+        }
+        if (blocks < 1 || blocks > DISK_BLOCKS)
+            throw new RuntimeException("blocks must be between 1 and " + DISK_BLOCKS);
+        if (ops < 1 || threads < 1)
+            throw new RuntimeException("ops and threads must be positive");
+        if (readRatio < 0.0 || readRatio > 1.0)
+            throw new RuntimeException("reads must be between 0.0 and 1.0");
+        if (!Arrays.asList(DISTRIBUTIONS).contains(dist))
+            throw new RuntimeException("dist must be one of " + Arrays.toString(DISTRIBUTIONS));
+    }
+
+    public Workload()
+    {
+        this(new String[0]);
+    }
+
+    //======================= parse(String) ====================================
+    //  Parses one key=value argument into the shared configuration.
+    //
+    private static void parse(String arg)
+    {
+        int split = arg.indexOf('=');
+        if (split < 1)
+            throw new RuntimeException("Arguments must be key=value, got \"" + arg + "\"");
+        String key = arg.substring(0, split).toLowerCase();
+        String value = arg.substring(split + 1).toLowerCase();
+
+        if (key.equals("cache")) {
+            if (!(value.equals("enabled") || value.equals("disabled")))
+                throw new RuntimeException("cache must be \"enabled\" or \"disabled\"");
+            useCache = value.equals("enabled");
+        } else if (key.equals("dist")) {
+            dist = value;
+        } else if (key.equals("ops")) {
+            ops = Integer.parseInt(value);
+        } else if (key.equals("blocks")) {
+            blocks = Integer.parseInt(value);
+        } else if (key.equals("reads")) {
+            readRatio = Double.parseDouble(value);
+        } else if (key.equals("threads")) {
+            threads = Integer.parseInt(value);
+        } else if (key.equals("seed")) {
+            seed = Long.parseLong(value);
+        } else if (key.equals("theta")) {
+            theta = Double.parseDouble(value);
+        } else if (key.equals("hot")) {
+            hotFraction = Double.parseDouble(value);
+        } else if (key.equals("header")) {
+            header = Boolean.parseBoolean(value);
+        } else {
+            throw new RuntimeException("Unknown argument \"" + key + "\"");
+        }
+    }
+
+    //======================= run() ============================================
+    //  Starts the client threads through SysLib.exec, waits for all of them
+    //  and reports the merged results.
+    //
+    public void run()
+    {
+        latencies = new long[threads][];
+        modeled = new long[threads][];
+        if (dist.equals("zipf"))
+            zipfCdf = zipfTable(blocks, theta);
+        if (useCache)
+            SysLib.flush(); // Start cold
+
+        long startTime = System.nanoTime();
+        int started = 0;
+        for (int i = 0; i < threads; i++) {
+            String[] args = {"Workload$Client", Integer.toString(i)};
+            if (SysLib.exec(args) < 0)
+                SysLib.cerr("Workload: client " + i + " failed to start\n");
+            else
+                started++;
+        }
+        for (int i = 0; i < started; i++)
+            SysLib.join();
+        long endTime = System.nanoTime();
+
+        report(endTime - startTime);
+        SysLib.exit();
+    }
+
+    //======================= report(long) =====================================
+    //  Prints throughput and p50/p99/p999 latency as CSV.
+    //
+    private void report(long elapsed)
+    {
+        long[] merged = merge(latencies);
+        long[] disk = merge(modeled);
+        long diskTotal = 0;
+        for (int i = 0; i < disk.length; i++)
+            diskTotal += disk[i];
+
+        double seconds = elapsed / 1e9;
+        if (header)
+            SysLib.cout("\ncache,dist,threads,ops,blocks,reads,seed,"
+                    + "elapsed_ms,ops_per_sec,p50_us,p99_us,p999_us,"
+                    + "model_ms,model_p50_ms,model_p99_ms\n");
+        SysLib.cout((useCache ? "enabled" : "disabled") + "," + dist + ","
+                + threads + "," + ops + "," + blocks + "," + readRatio + ","
+                + seed + "," + (elapsed / 1000000) + ","
+                + String.format("%.1f", merged.length / seconds) + ","
+                + percentile(merged, 0.50) / 1000 + ","
+                + percentile(merged, 0.99) / 1000 + ","
+                + percentile(merged, 0.999) / 1000 + ","
+                + (disk.length == 0 ? ",," : diskTotal + ","
+                        + percentile(disk, 0.50) + ","
+                        + percentile(disk, 0.99)) + "\n");
+    }
+
+    //======================= merge(long[][]) ==================================
+    //  Concatenates the per-client arrays and sorts the result. Clients that
+    //  recorded nothing are skipped.
+    //
+    private static long[] merge(long[][] perClient)
+    {
+        int total = 0;
+        for (int i = 0; i < perClient.length; i++) {
+            if (perClient[i] != null)
+                total += perClient[i].length;
+        }
+        long[] merged = new long[total];
+        int pos = 0;
+        for (int i = 0; i < perClient.length; i++) {
+            if (perClient[i] != null) {
+                System.arraycopy(perClient[i], 0, merged, pos, perClient[i].length);
+                pos += perClient[i].length;
+            }
+        }
+        Arrays.sort(merged);
+        return merged;
+    }
+
+    //======================= percentile(long[], double) =======================
+    //  Nearest-rank percentile of a sorted array.
+    //
+    private static long percentile(long[] sorted, double p)
+    {
+        if (sorted.length == 0)
+            return 0;
+        int rank = (int)Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(rank, sorted.length - 1))];
+    }
+
+    //======================= zipfTable(int, double) ===========================
+    //  Builds the cumulative distribution for a Zipf law over n blocks, where
+    //  block k is accessed with probability proportional to 1 / (k+1)^theta.
+    //
+    private static double[] zipfTable(int n, double skew)
+    {
+        double[] cdf = new double[n];
+        double sum = 0.0;
+        for (int k = 0; k < n; k++) {
+            sum += 1.0 / Math.pow(k + 1, skew);
+            cdf[k] = sum;
+        }
+        for (int k = 0; k < n; k++)
+            cdf[k] /= sum;
+        return cdf;
+    }
+
+    //======================= Client Class =====================================
+    //  One client thread. Issues ops operations drawn from the configured
+    //  distribution and records the latency of each one.
+    //
+    public static class Client extends Thread {
+        private final int index;
+        private final Random random;
+        private byte[] buffer = new byte[BSIZE];
+        private int scanNext; // Next block for dist=scan
+
+        public Client(String[] args)
+        {
+            index = Integer.parseInt(args[0]);
+            random = new Random(seed + index);
+            scanNext = (int)((long)index * blocks / threads); // Stagger scans
+        }
+
+        public void run()
+        {
+            long[] times = new long[ops];
+            long[] diskTimes = new long[ops];
+            boolean virtualDisk = SysLibExt.dtime() >= 0;
+            for (int i = 0; i < ops; i++) {
+                int blockId = nextBlock();
+                boolean isRead = random.nextDouble() < readRatio;
+                if (!isRead)
+                    Arrays.fill(buffer, (byte)blockId);
+
+                int diskStart = virtualDisk ? SysLibExt.dtime() : 0;
+                long start = System.nanoTime();
+                if (isRead)
+                    read(blockId, buffer);
+                else
+                    write(blockId, buffer);
+                times[i] = System.nanoTime() - start;
+                if (virtualDisk)
+                    diskTimes[i] = SysLibExt.dtime() - diskStart;
+            }
+            latencies[index] = times;
+            if (virtualDisk)
+                modeled[index] = diskTimes;
+            SysLib.exit();
+        }
+
+        //======================= nextBlock() ==================================
+        //  Draws the next block id from the configured distribution.
+        //
+        private int nextBlock()
+        {
+            if (dist.equals("zipf")) {
+                int k = Arrays.binarySearch(zipfCdf, random.nextDouble());
+                return Math.min(k < 0 ? -k - 1 : k, blocks - 1);
+            } else if (dist.equals("hotcold")) {
+                int hot = Math.max(1, (int)(blocks * hotFraction));
+                if (random.nextDouble() < 0.9 || hot == blocks)
+                    return random.nextInt(hot);
+                return hot + random.nextInt(blocks - hot);
+            } else if (dist.equals("scan")) {
+                int blockId = scanNext;
+                scanNext = (scanNext + 1) % blocks;
+                return blockId;
+            } else if (dist.equals("mixed")) {
+                if (random.nextInt(10) > 8)
+                    return random.nextInt(blocks);
+                return random.nextInt(Math.min(10, blocks));
+            }
+            return random.nextInt(blocks);
+        }
+
+        //======================= read(int, byte[]) ============================
+        //  Helper method that either uses cread or rawread.
+        //
+        private void read(int num, byte[] arr)
+        {
+            if (useCache)
+                SysLib.cread(num, arr);
+            else
+                SysLib.rawread(num, arr);
+        }
+
+        //======================= write(int, byte[]) ===========================
+        //  Helper method that either uses cwrite or rawwrite.
+        //
+        private void write(int num, byte[] arr)
+        {
+            if (useCache)
+                SysLib.cwrite(num, arr);
+            else
+                SysLib.rawwrite(num, arr);
+        }
+    }
+}